@@ -0,0 +1,58 @@
+package net.adamcin.commons.sling.file.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * File helpers shared by the benchmarks
+ */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Failed to create temp dir " + dir);
+        }
+        return dir;
+    }
+
+    static File copy(File source, File dir) throws IOException {
+        File target = File.createTempFile(source.getName(), ".copy", dir);
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        return target;
+    }
+
+    static void deleteRecursively(File file) {
+        if (file == null) {
+            return;
+        }
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
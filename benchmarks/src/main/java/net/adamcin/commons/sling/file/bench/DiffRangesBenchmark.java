@@ -0,0 +1,71 @@
+package net.adamcin.commons.sling.file.bench;
+
+import net.adamcin.commons.sling.file.RangedTextFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diffs two versions of a feed which differ in a fraction of their ranges
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiffRangesBenchmark {
+
+    @Param({"1000000"})
+    public int lines;
+
+    @Param({"1000", "100000"})
+    public int cardinality;
+
+    @Param({"0.0", "0.01", "0.5"})
+    public double changedFraction;
+
+    /**
+     * When false, the newer file uses a different digest algorithm, so every shared range is digested again
+     */
+    @Param({"true", "false"})
+    public boolean sameAlgorithm;
+
+    private File tempDir;
+    private RangedTextFile base;
+    private RangedTextFile current;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = BenchmarkFiles.createTempDir(getClass().getSimpleName());
+        FeedGenerator generator = new FeedGenerator(lines, 8, cardinality, 1.0D, 42L);
+        base = build(generator.write(tempDir), RangedTextFile.DEFAULT_DIGEST_ALGORITHM);
+        current = build(generator.write(tempDir, changedFraction),
+                sameAlgorithm ? RangedTextFile.DEFAULT_DIGEST_ALGORITHM : RangedTextFile.DIGEST_SHA1);
+    }
+
+    private RangedTextFile build(File feed, String digestAlgorithm) throws IOException {
+        try {
+            return RangedTextFile.createFromStream(new FileInputStream(feed), FeedGenerator.ENCODING, 8, false,
+                    tempDir, 0, digestAlgorithm);
+        } finally {
+            feed.delete();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        base.close();
+        current.close();
+        BenchmarkFiles.deleteRecursively(tempDir);
+    }
+
+    @Benchmark
+    public Map<String, RangedTextFile.RangeDiffInfoType> diffRanges() {
+        return RangedTextFile.diffRanges(base, current);
+    }
+}
@@ -0,0 +1,142 @@
+package net.adamcin.commons.sling.file.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Writes synthetic feeds for the benchmarks. Each line starts with a fixed-width rangeId followed by a space and a
+ * pseudo-random payload, so the same parameters and seed always produce the same file.
+ */
+public class FeedGenerator {
+
+    public static final String ENCODING = "UTF-8";
+
+    private static final int PAYLOAD_LENGTH = 80;
+    private static final char[] PAYLOAD_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789 ,.".toCharArray();
+
+    private final int lines;
+    private final int rangeIdWidth;
+    private final int cardinality;
+    private final double sortedness;
+    private final long seed;
+
+    /**
+     * @param lines total number of lines
+     * @param rangeIdWidth width of the rangeId at the start of each line
+     * @param cardinality number of distinct rangeIds, spread evenly over the lines
+     * @param sortedness fraction of lines left in sorted position, from 0.0 (shuffled) to 1.0 (sorted)
+     * @param seed random seed
+     */
+    public FeedGenerator(int lines, int rangeIdWidth, int cardinality, double sortedness, long seed) {
+        if (cardinality < 1 || cardinality > lines) {
+            throw new IllegalArgumentException("cardinality must be between 1 and lines: " + cardinality);
+        }
+        if (Long.toString(cardinality - 1, Character.MAX_RADIX).length() > rangeIdWidth) {
+            throw new IllegalArgumentException("cardinality " + cardinality + " doesn't fit in rangeIdWidth "
+                    + rangeIdWidth);
+        }
+        this.lines = lines;
+        this.rangeIdWidth = rangeIdWidth;
+        this.cardinality = cardinality;
+        this.sortedness = sortedness;
+        this.seed = seed;
+    }
+
+    public int getLines() {
+        return lines;
+    }
+
+    public int getRangeIdWidth() {
+        return rangeIdWidth;
+    }
+
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @param range from 0 to cardinality - 1
+     * @return the zero-padded rangeId, which sorts in the same order as range
+     */
+    public String rangeId(int range) {
+        String id = Integer.toString(range, Character.MAX_RADIX);
+        StringBuilder sb = new StringBuilder(rangeIdWidth);
+        for (int i = id.length(); i < rangeIdWidth; i++) {
+            sb.append('0');
+        }
+        return sb.append(id).toString();
+    }
+
+    /**
+     * @return every rangeId, in sorted order
+     */
+    public String[] rangeIds() {
+        String[] ids = new String[cardinality];
+        for (int i = 0; i < cardinality; i++) {
+            ids[i] = rangeId(i);
+        }
+        return ids;
+    }
+
+    public File write(File dir) throws IOException {
+        return write(dir, 0.0D);
+    }
+
+    /**
+     * Writes the feed to a new temp file
+     * @param dir directory for the file
+     * @param changedFraction fraction of ranges whose payload differs from a feed written with changedFraction 0.0,
+     *                        for producing the newer side of a diff
+     * @return the new file
+     * @throws IOException
+     */
+    public File write(File dir, double changedFraction) throws IOException {
+        // sorted order, then displace the unsorted fraction with random swaps
+        int[] order = new int[lines];
+        for (int i = 0; i < lines; i++) {
+            order[i] = i;
+        }
+        Random random = new Random(seed);
+        int swaps = (int) Math.round(lines * (1.0D - sortedness) / 2.0D);
+        for (int i = 0; i < swaps; i++) {
+            int a = random.nextInt(lines);
+            int b = random.nextInt(lines);
+            int t = order[a];
+            order[a] = order[b];
+            order[b] = t;
+        }
+
+        long changedThreshold = Math.round(changedFraction * 1000.0D);
+        File file = File.createTempFile(getClass().getSimpleName(), ".txt", dir);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), ENCODING));
+        try {
+            char[] payload = new char[PAYLOAD_LENGTH];
+            for (int i = 0; i < lines; i++) {
+                int line = order[i];
+                int range = (int) ((long) line * cardinality / lines);
+
+                // payload depends only on the line, so that unchanged ranges have identical bytes
+                Random lineRandom = new Random(seed ^ (line * 0x9E3779B97F4A7C15L));
+                for (int c = 0; c < payload.length; c++) {
+                    payload[c] = PAYLOAD_CHARS[lineRandom.nextInt(PAYLOAD_CHARS.length)];
+                }
+                if ((range * 7919L) % 1000L < changedThreshold) {
+                    payload[0] = '*';
+                }
+
+                writer.write(rangeId(range));
+                writer.write(' ');
+                writer.write(payload);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,80 @@
+package net.adamcin.commons.sling.file.bench;
+
+import net.adamcin.commons.sling.file.RangedTextFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random getRange lookups against a shared file, from one thread and from several
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GetRangeBenchmark {
+
+    @Param({"1000000"})
+    public int lines;
+
+    @Param({"1000", "100000"})
+    public int cardinality;
+
+    /**
+     * Zero disables the decoded range cache
+     */
+    @Param({"0", "16777216"})
+    public long cacheBytes;
+
+    @Param({"0", "65536"})
+    public int compressedBlockSize;
+
+    String[] rangeIds;
+    private File tempDir;
+    private RangedTextFile textFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = BenchmarkFiles.createTempDir(getClass().getSimpleName());
+        FeedGenerator generator = new FeedGenerator(lines, 8, cardinality, 1.0D, 42L);
+        File feed = generator.write(tempDir);
+        textFile = RangedTextFile.createFromStream(new FileInputStream(feed), FeedGenerator.ENCODING, 8, true, tempDir,
+                compressedBlockSize);
+        textFile.setRangeCacheSize(cacheBytes);
+        feed.delete();
+        rangeIds = generator.rangeIds();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        textFile.close();
+        BenchmarkFiles.deleteRecursively(tempDir);
+    }
+
+    @State(Scope.Thread)
+    public static class Lookups {
+        private final Random random = new Random();
+
+        String next(GetRangeBenchmark benchmark) {
+            return benchmark.rangeIds[random.nextInt(benchmark.rangeIds.length)];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String getRange(Lookups lookups) {
+        return textFile.getRange(lookups.next(this));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getRangeContended(Lookups lookups) {
+        return textFile.getRange(lookups.next(this));
+    }
+}
@@ -0,0 +1,39 @@
+package net.adamcin.commons.sling.file.bench;
+
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Jackrabbit repository which keeps all content in memory, using the configuration in repository.xml
+ */
+final class InMemoryRepository {
+
+    private final File home;
+    private final RepositoryImpl repository;
+
+    InMemoryRepository() throws IOException, RepositoryException {
+        this.home = BenchmarkFiles.createTempDir(getClass().getSimpleName());
+        InputStream config = getClass().getResourceAsStream("repository.xml");
+        try {
+            this.repository = RepositoryImpl.create(RepositoryConfig.create(config, home.getAbsolutePath()));
+        } finally {
+            config.close();
+        }
+    }
+
+    Session login() throws RepositoryException {
+        return repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+    }
+
+    void shutdown() {
+        repository.shutdown();
+        BenchmarkFiles.deleteRecursively(home);
+    }
+}
@@ -0,0 +1,75 @@
+package net.adamcin.commons.sling.file.bench;
+
+import net.adamcin.commons.sling.file.RangedTextFile;
+import net.adamcin.commons.sling.file.Records;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans a sorted feed for ranges and computes the file and range digests
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int lines;
+
+    @Param({"8", "32"})
+    public int rangeIdWidth;
+
+    @Param({"100", "10000"})
+    public int cardinality;
+
+    @Param({RangedTextFile.DIGEST_MURMUR3_128, RangedTextFile.DIGEST_SHA1})
+    public String digestAlgorithm;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private File tempDir;
+    private File feed;
+    private File copy;
+    private RangedTextFile textFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = BenchmarkFiles.createTempDir(getClass().getSimpleName());
+        feed = new FeedGenerator(lines, rangeIdWidth, cardinality, 1.0D, 42L).write(tempDir);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyFeed() throws IOException {
+        // the RangedTextFile takes ownership of the sorted file and deletes it on close
+        copy = BenchmarkFiles.copy(feed, tempDir);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeTextFile() {
+        if (textFile != null) {
+            textFile.close();
+            textFile = null;
+        }
+        copy.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteRecursively(tempDir);
+    }
+
+    @Benchmark
+    public int createFromSortedFile() throws IOException {
+        textFile = RangedTextFile.createFromSortedFile(copy, Charset.forName(FeedGenerator.ENCODING),
+                Records.newlineDelimited(), Records.fixedWidth(rangeIdWidth), digestAlgorithm, parallelism);
+        return textFile.size();
+    }
+}
@@ -0,0 +1,84 @@
+package net.adamcin.commons.sling.file.bench;
+
+import net.adamcin.commons.sling.file.RangedTextFile;
+import org.openjdk.jmh.annotations.*;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists a file to a node and loads it back, against an in-memory Jackrabbit repository
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NodeBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int lines;
+
+    @Param({"1000", "100000"})
+    public int cardinality;
+
+    @Param({"0", "65536"})
+    public int compressedBlockSize;
+
+    private File tempDir;
+    private InMemoryRepository repository;
+    private Session session;
+    private Node saveNode;
+    private Node loadNode;
+    private RangedTextFile textFile;
+    private RangedTextFile loaded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, RepositoryException {
+        tempDir = BenchmarkFiles.createTempDir(getClass().getSimpleName());
+        File feed = new FeedGenerator(lines, 8, cardinality, 1.0D, 42L).write(tempDir);
+        textFile = RangedTextFile.createFromStream(new FileInputStream(feed), FeedGenerator.ENCODING, 8, false,
+                tempDir, compressedBlockSize);
+        feed.delete();
+
+        repository = new InMemoryRepository();
+        session = repository.login();
+        saveNode = session.getRootNode().addNode("save", "nt:unstructured");
+        loadNode = session.getRootNode().addNode("load", "nt:unstructured");
+        session.save();
+        textFile.saveToNode(loadNode);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeLoaded() {
+        if (loaded != null) {
+            loaded.close();
+            loaded = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        textFile.close();
+        session.logout();
+        repository.shutdown();
+        BenchmarkFiles.deleteRecursively(tempDir);
+    }
+
+    @Benchmark
+    public void saveToNode() throws IOException, RepositoryException {
+        textFile.saveToNode(saveNode);
+    }
+
+    @Benchmark
+    public int loadFromNode() throws RepositoryException {
+        loaded = RangedTextFile.loadFromNode(loadNode, tempDir);
+        return loaded.size();
+    }
+}
@@ -0,0 +1,63 @@
+package net.adamcin.commons.sling.file.bench;
+
+import net.adamcin.commons.sling.file.ExternalSort;
+import net.adamcin.commons.sling.file.RangedTextFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorts a feed into runs and merges them, as {@link RangedTextFile#createFromStream} does when sort is true
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SortBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int lines;
+
+    @Param({"0.0", "0.9", "1.0"})
+    public double sortedness;
+
+    @Param({"1000"})
+    public int cardinality;
+
+    private File tempDir;
+    private File feed;
+    private File sorted;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = BenchmarkFiles.createTempDir(getClass().getSimpleName());
+        feed = new FeedGenerator(lines, 8, cardinality, sortedness, 42L).write(tempDir);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteSorted() {
+        if (sorted != null) {
+            sorted.delete();
+            sorted = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFiles.deleteRecursively(tempDir);
+    }
+
+    @Benchmark
+    public int sort() throws IOException {
+        Charset charset = Charset.forName(FeedGenerator.ENCODING);
+        List<File> runs = ExternalSort.sortInBatch(feed, RangedTextFile.SORT_CMP, 1024, charset, tempDir);
+        sorted = File.createTempFile("sorted", ".txt", tempDir);
+        return ExternalSort.mergeSortedFiles(runs, sorted, RangedTextFile.SORT_CMP, charset);
+    }
+}
@@ -0,0 +1,108 @@
+package net.adamcin.commons.sling.osgi.bench;
+
+import net.adamcin.commons.sling.osgi.ComponentFactoryManager;
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentFactory;
+import org.osgi.service.component.ComponentInstance;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * newInstance and release on a shared manager, from one thread and from several, against an in-memory bundle context
+ * whose factory creates a new object per instance
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ComponentFactoryManagerBenchmark {
+
+    /**
+     * Components each thread holds before releasing them, like a request holding several components
+     */
+    @Param({"1", "16"})
+    public int held;
+
+    private ComponentFactoryManager<Object> manager;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final ComponentFactory factory = new ComponentFactory() {
+            public ComponentInstance newInstance(Dictionary properties) {
+                final Object component = new Object();
+                return new ComponentInstance() {
+                    public void dispose() {
+                    }
+
+                    public Object getInstance() {
+                        return component;
+                    }
+                };
+            }
+        };
+
+        final ServiceReference ref = proxy(ServiceReference.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+
+        BundleContext bundleContext = proxy(BundleContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getServiceReferences".equals(name)) {
+                    return new ServiceReference[]{ref};
+                } else if ("getService".equals(name)) {
+                    return factory;
+                } else if ("ungetService".equals(name)) {
+                    return Boolean.TRUE;
+                }
+                return null;
+            }
+        });
+
+        manager = ComponentFactoryManager.newManagerInstance(bundleContext, Object.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        manager.releaseAll();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int newInstanceAndRelease() {
+        return cycle();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int newInstanceAndReleaseContended() {
+        return cycle();
+    }
+
+    private int cycle() {
+        Object[] components = new Object[held];
+        for (int i = 0; i < held; i++) {
+            components[i] = manager.newInstance("bench");
+        }
+        for (Object component : components) {
+            manager.release(component);
+        }
+        return components.length;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(ComponentFactoryManagerBenchmark.class.getClassLoader(),
+                new Class<?>[]{type}, handler);
+    }
+}
@@ -0,0 +1,314 @@
+package net.adamcin.commons.sling.file;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block-compressed representation of a {@link RangedTextFile} data file. The uncompressed data is cut into fixed-size
+ * blocks which are deflated independently, so that a logical offset maps directly to a (block, offset-in-block)
+ * pair, and reading a range only requires inflating the blocks it spans.
+ *
+ * The file layout is the concatenation of the compressed blocks, followed by a footer containing the compressed
+ * start offset of each block plus the end offset of the last one, the uncompressed length, the block size, the block
+ * count and a magic number. The footer makes the file self-describing, so it can be persisted as a single binary.
+ */
+final class BlockCompressedFile {
+
+    static final int MAGIC = 0x52544642;
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Number of recently inflated blocks kept in memory, which covers the common case of consecutive reads of
+     * neighbouring ranges.
+     */
+    static final int BLOCK_CACHE_SIZE = 8;
+
+    private static final int FOOTER_TAIL_LENGTH = 8 + 4 + 4 + 4;
+
+    private final File file;
+    private final int blockSize;
+    private final long length;
+    private final long[] blockOffsets;
+
+    private final Map<Integer, byte[]> blockCache = new LinkedHashMap<Integer, byte[]>(BLOCK_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+            return size() > BLOCK_CACHE_SIZE;
+        }
+    };
+
+    private BlockCompressedFile(final File file, final int blockSize, final long length, final long[] blockOffsets) {
+        this.file = file;
+        this.blockSize = blockSize;
+        this.length = length;
+        this.blockOffsets = blockOffsets;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return the uncompressed length of the data
+     */
+    long getLength() {
+        return length;
+    }
+
+    int getBlockCount() {
+        return blockOffsets.length - 1;
+    }
+
+    /**
+     * Compresses the plain file into the target file.
+     * @param plain the uncompressed data file
+     * @param target the file to write the compressed blocks and footer to
+     * @param blockSize the uncompressed size of each block
+     * @return a BlockCompressedFile for reading the target file
+     * @throws IOException
+     */
+    static BlockCompressedFile compress(final File plain, final File target, final int blockSize) throws IOException {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+
+        InputStream in = null;
+        DataOutputStream out = null;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            in = new FileInputStream(plain);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+
+            long total = plain.length();
+            int blockCount = (int) ((total + blockSize - 1) / blockSize);
+            long[] blockOffsets = new long[blockCount + 1];
+
+            byte[] block = new byte[blockSize];
+            byte[] compressed = new byte[blockSize + 64];
+            long written = 0L;
+            for (int i = 0; i < blockCount; i++) {
+                int len = (int) Math.min(blockSize, total - (long) i * blockSize);
+                readFully(in, block, len);
+
+                blockOffsets[i] = written;
+                deflater.reset();
+                deflater.setInput(block, 0, len);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(compressed);
+                    out.write(compressed, 0, count);
+                    written += count;
+                }
+            }
+            blockOffsets[blockCount] = written;
+
+            for (long blockOffset : blockOffsets) {
+                out.writeLong(blockOffset);
+            }
+            out.writeLong(total);
+            out.writeInt(blockSize);
+            out.writeInt(blockCount);
+            out.writeInt(MAGIC);
+            out.flush();
+
+            return new BlockCompressedFile(target, blockSize, total, blockOffsets);
+        } finally {
+            deflater.end();
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Opens an existing compressed file by reading its footer.
+     * @param file
+     * @return
+     * @throws IOException if the file is not a block-compressed data file
+     */
+    static BlockCompressedFile open(final File file) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            if (raf.length() < FOOTER_TAIL_LENGTH) {
+                throw new IOException("Not a block compressed file: " + file);
+            }
+
+            raf.seek(raf.length() - FOOTER_TAIL_LENGTH);
+            long length = raf.readLong();
+            int blockSize = raf.readInt();
+            int blockCount = raf.readInt();
+            if (raf.readInt() != MAGIC || blockSize <= 0 || blockCount < 0) {
+                throw new IOException("Not a block compressed file: " + file);
+            }
+
+            long[] blockOffsets = new long[blockCount + 1];
+            raf.seek(raf.length() - FOOTER_TAIL_LENGTH - 8L * blockOffsets.length);
+            for (int i = 0; i < blockOffsets.length; i++) {
+                blockOffsets[i] = raf.readLong();
+            }
+
+            return new BlockCompressedFile(file, blockSize, length, blockOffsets);
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Opens a stream of the uncompressed data, positioned at the specified logical offset.
+     * @param offset
+     * @return
+     * @throws IOException
+     */
+    InputStream openStream(final long offset) throws IOException {
+        BlockInputStream stream = new BlockInputStream(new RandomAccessFile(file, "r"));
+        stream.seek(offset);
+        return stream;
+    }
+
+    private byte[] readBlock(final RandomAccessFile raf, final int blockIndex) throws IOException {
+        synchronized (blockCache) {
+            byte[] cached = blockCache.get(blockIndex);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        byte[] compressed = new byte[(int) (blockOffsets[blockIndex + 1] - blockOffsets[blockIndex])];
+        raf.seek(blockOffsets[blockIndex]);
+        raf.readFully(compressed);
+
+        byte[] block = new byte[(int) Math.min(blockSize, length - (long) blockIndex * blockSize)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int inflated = 0;
+            while (inflated < block.length && !inflater.finished()) {
+                int count = inflater.inflate(block, inflated, block.length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != block.length) {
+                throw new IOException("Block " + blockIndex + " is truncated in " + file);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Block " + blockIndex + " is corrupt in " + file + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        synchronized (blockCache) {
+            blockCache.put(blockIndex, block);
+        }
+        return block;
+    }
+
+    private static void readFully(final InputStream in, final byte[] buf, final int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int count = in.read(buf, read, len - read);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of file after " + read + " of " + len + " bytes");
+            }
+            read += count;
+        }
+    }
+
+    /**
+     * Sequential stream over the uncompressed data. Skipping moves directly to the target block without inflating
+     * the blocks in between.
+     */
+    final class BlockInputStream extends InputStream {
+        private final RandomAccessFile raf;
+        private byte[] block;
+        private int blockIndex = -1;
+        private int posInBlock;
+
+        BlockInputStream(final RandomAccessFile raf) {
+            this.raf = raf;
+        }
+
+        void seek(final long offset) throws IOException {
+            if (offset < 0 || offset > length) {
+                throw new EOFException("Offset " + offset + " is outside of " + file);
+            }
+            int targetBlock = (int) (offset / blockSize);
+            if (targetBlock != blockIndex) {
+                block = targetBlock < getBlockCount() ? readBlock(raf, targetBlock) : new byte[0];
+                blockIndex = targetBlock;
+            }
+            posInBlock = (int) (offset % blockSize);
+        }
+
+        private long position() {
+            return (long) blockIndex * blockSize + posInBlock;
+        }
+
+        private boolean fill() throws IOException {
+            if (posInBlock < block.length) {
+                return true;
+            }
+            if (blockIndex + 1 >= getBlockCount()) {
+                return false;
+            }
+            seek((long) (blockIndex + 1) * blockSize);
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return block[posInBlock++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, block.length - posInBlock);
+            System.arraycopy(block, posInBlock, b, off, count);
+            posInBlock += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0L;
+            }
+            long from = position();
+            long to = Math.min(length, from + n);
+            seek(to);
+            return to - from;
+        }
+
+        @Override
+        public int available() {
+            return block == null ? 0 : block.length - posInBlock;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+}
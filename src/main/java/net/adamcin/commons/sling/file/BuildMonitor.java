@@ -0,0 +1,193 @@
+package net.adamcin.commons.sling.file;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports the progress of a single {@link RangedTextFile} build and allows it to be cancelled. All methods are safe
+ * to call from any thread while the build is running.
+ *
+ * Cancellation is cooperative: the build checks for it between lines, runs and ranges, and then fails with an
+ * {@link InterruptedIOException}, deleting any temp files it created along the way. Interrupting the building
+ * thread has the same effect.
+ *
+ * Phase timings, byte counts and sorted runs are also reported to a {@link FileMetrics} hook.
+ */
+public class BuildMonitor {
+
+    public static enum Phase {
+        PENDING,
+        COPYING,
+        SORTING,
+        MERGING,
+        INDEXING,
+        DIGESTING,
+        COMPRESSING,
+        DONE,
+        FAILED,
+        CANCELLED
+    }
+
+    private final FileMetrics metrics;
+
+    private volatile Phase phase = Phase.PENDING;
+    private volatile boolean cancelled;
+    private long phaseStartNanos = System.nanoTime();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong runsWritten = new AtomicLong();
+    private final AtomicLong linesSorted = new AtomicLong();
+    private final AtomicLong linesMerged = new AtomicLong();
+    private final AtomicLong rangesIndexed = new AtomicLong();
+    private final AtomicLong rangesDigested = new AtomicLong();
+
+    /**
+     * Creates a monitor reporting to {@link RangedTextFile#getDefaultMetrics()}
+     */
+    public BuildMonitor() {
+        this(null);
+    }
+
+    /**
+     * @param metrics metrics hook for this build. If null, {@link RangedTextFile#getDefaultMetrics()} is used.
+     */
+    public BuildMonitor(final FileMetrics metrics) {
+        this.metrics = metrics != null ? metrics : RangedTextFile.getDefaultMetrics();
+    }
+
+    /**
+     * Requests cancellation of the build
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the number of bytes copied from the input stream
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the number of sorted runs written to temp files
+     */
+    public long getRunsWritten() {
+        return runsWritten.get();
+    }
+
+    /**
+     * @return the number of lines read into sorted runs
+     */
+    public long getLinesSorted() {
+        return linesSorted.get();
+    }
+
+    /**
+     * @return the number of lines written by the merge of the sorted runs
+     */
+    public long getLinesMerged() {
+        return linesMerged.get();
+    }
+
+    /**
+     * @return the percentage of sorted lines which have been merged, from 0 to 100
+     */
+    public int getMergePercent() {
+        long sorted = linesSorted.get();
+        if (sorted == 0L) {
+            return phase.ordinal() > Phase.MERGING.ordinal() ? 100 : 0;
+        }
+        return (int) Math.min(100L, linesMerged.get() * 100L / sorted);
+    }
+
+    /**
+     * @return the number of ranges found in the sorted file
+     */
+    public long getRangesIndexed() {
+        return rangesIndexed.get();
+    }
+
+    /**
+     * @return the number of ranges whose digests have been computed
+     */
+    public long getRangesDigested() {
+        return rangesDigested.get();
+    }
+
+    FileMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Moves to the next phase, reporting the time spent in the previous one if it was a working phase
+     * @param phase
+     */
+    synchronized void setPhase(final Phase phase) {
+        long now = System.nanoTime();
+        Phase previous = this.phase;
+        if (previous != phase && previous.ordinal() >= Phase.COPYING.ordinal()
+                && previous.ordinal() <= Phase.COMPRESSING.ordinal()) {
+            metrics.phaseCompleted(previous, now - phaseStartNanos);
+        }
+        this.phaseStartNanos = now;
+        this.phase = phase;
+    }
+
+    void addBytesRead(final long count) {
+        bytesRead.addAndGet(count);
+        metrics.bytesRead(count);
+    }
+
+    void addRunWritten(final long lines) {
+        runsWritten.incrementAndGet();
+        metrics.runWritten(lines);
+    }
+
+    void addLinesSorted(final long count) {
+        linesSorted.addAndGet(count);
+    }
+
+    void addLinesMerged(final long count) {
+        linesMerged.addAndGet(count);
+    }
+
+    void addRangeIndexed() {
+        rangesIndexed.incrementAndGet();
+    }
+
+    void addRangeDigested() {
+        rangesDigested.incrementAndGet();
+    }
+
+    /**
+     * @throws InterruptedIOException if the build has been cancelled or the current thread interrupted
+     */
+    void checkCancelled() throws InterruptedIOException {
+        if (cancelled || Thread.currentThread().isInterrupted()) {
+            cancelled = true;
+            throw new InterruptedIOException("RangedTextFile build cancelled");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BuildMonitor{" +
+                "phase=" + phase +
+                ", bytesRead=" + getBytesRead() +
+                ", runsWritten=" + getRunsWritten() +
+                ", mergePercent=" + getMergePercent() +
+                ", rangesIndexed=" + getRangesIndexed() +
+                ", rangesDigested=" + getRangesDigested() +
+                ", cancelled=" + cancelled +
+                '}';
+    }
+}
@@ -40,6 +40,9 @@ public class ExternalSort {
 	
     static int DEFAULTMAXTEMPFILES = 1024;
 
+    // how many lines to process between checks for cancellation
+    static int CANCEL_CHECK_LINES = 1024;
+
     // we divide the file into small blocks. If the blocks
     // are too small, we shall create too many temporary files.
     // If they are too big, we shall be using too much memory.
@@ -93,10 +96,29 @@ public class ExternalSort {
      * @return a list of temporary flat files
      */
     public static List<File> sortInBatch(File file, Comparator<String> cmp, int maxtmpfiles, Charset cs, File tmpdirectory) throws IOException {
+        return sortInBatch(file, cmp, maxtmpfiles, cs, tmpdirectory, null);
+    }
+
+    /**
+     * Same as {@link #sortInBatch(File, Comparator, int, Charset, File)}, reporting lines read and runs written
+     * to the monitor. If the monitor is cancelled, the temporary files written so far are deleted and an
+     * InterruptedIOException is thrown.
+     *
+     * @param file some flat  file
+     * @param cmp string comparator
+     * @param maxtmpfiles maximal number of temporary files
+     * @param cs Charset character set to use  (can use Charset.defaultCharset())
+     * @param tmpdirectory location of the temporary files (set to null for default location)
+     * @param monitor build monitor (may be null)
+     * @return a list of temporary flat files
+     */
+    public static List<File> sortInBatch(File file, Comparator<String> cmp, int maxtmpfiles, Charset cs, File tmpdirectory, BuildMonitor monitor) throws IOException {
+        if (monitor == null) monitor = new BuildMonitor();
         List<File> files = new ArrayList<File>();
         BufferedReader fbr = new BufferedReader(new InputStreamReader(new FileInputStream(file),cs));
         long blocksize = estimateBestSizeOfBlocks(file,maxtmpfiles);// in bytes
 
+        boolean completed = false;
         try{
             List<String> tmplist =  new ArrayList<String>();
             String line = "";
@@ -107,18 +129,31 @@ public class ExternalSort {
                             &&(   (line = fbr.readLine()) != null) ){ // as long as you have enough memory
                         tmplist.add(line);
                         currentblocksize += line.length() * 2; // java uses 16 bits per character?
+                        if (tmplist.size() % CANCEL_CHECK_LINES == 0) monitor.checkCancelled();
                     }
-                    files.add(sortAndSave(tmplist,cmp,cs,tmpdirectory));
+                    monitor.addLinesSorted(tmplist.size());
+                    File run = sortAndSave(tmplist,cmp,cs,tmpdirectory);
+                    files.add(run);
+                    monitor.addRunWritten(tmplist.size());
+                    monitor.getMetrics().bytesWritten(run.length());
                     tmplist.clear();
                 }
             } catch(EOFException oef) {
                 if(tmplist.size()>0) {
-                    files.add(sortAndSave(tmplist,cmp,cs,tmpdirectory));
+                    monitor.addLinesSorted(tmplist.size());
+                    File run = sortAndSave(tmplist,cmp,cs,tmpdirectory);
+                    files.add(run);
+                    monitor.addRunWritten(tmplist.size());
+                    monitor.getMetrics().bytesWritten(run.length());
                     tmplist.clear();
                 }
             }
+            completed = true;
         } finally {
             fbr.close();
+            if (!completed) {
+                for (File f : files) f.delete();
+            }
         }
         return files;
     }
@@ -167,6 +202,21 @@ public class ExternalSort {
      * @return The number of lines sorted. (P. Beaudoin)
      */
     public static int mergeSortedFiles(List<File> files, File outputfile, final Comparator<String> cmp, Charset cs) throws IOException {
+        return mergeSortedFiles(files, outputfile, cmp, cs, null);
+    }
+
+    /**
+     * Same as {@link #mergeSortedFiles(List, File, Comparator, Charset)}, reporting lines merged to the monitor. If
+     * the monitor is cancelled, the remaining temporary files are deleted and an InterruptedIOException is thrown.
+     * @param files
+     * @param outputfile file
+     * @param cmp
+     * @param cs Charset character set to use to load the strings
+     * @param monitor build monitor (may be null)
+     * @return The number of lines sorted. (P. Beaudoin)
+     */
+    public static int mergeSortedFiles(List<File> files, File outputfile, final Comparator<String> cmp, Charset cs, BuildMonitor monitor) throws IOException {
+        if (monitor == null) monitor = new BuildMonitor();
         PriorityQueue<BinaryFileBuffer> pq = new PriorityQueue<BinaryFileBuffer>(11,
                 new Comparator<BinaryFileBuffer>() {
                     public int compare(BinaryFileBuffer i, BinaryFileBuffer j) {
@@ -174,9 +224,19 @@ public class ExternalSort {
                     }
                 }
         );
-        for (File f : files) {
-            BinaryFileBuffer bfb = new BinaryFileBuffer(f,cs);
-            pq.add(bfb);
+        monitor.getMetrics().mergeStarted(files.size());
+        boolean completed = false;
+        try {
+            for (File f : files) {
+                monitor.getMetrics().bytesRead(f.length());
+                BinaryFileBuffer bfb = new BinaryFileBuffer(f,cs);
+                pq.add(bfb);
+            }
+        } finally {
+            if (pq.size() < files.size()) {
+                for (BinaryFileBuffer bfb : pq) bfb.close();
+                for (File f : files) f.delete();
+            }
         }
         BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputfile),cs));
         int rowcounter = 0;
@@ -187,6 +247,10 @@ public class ExternalSort {
                 fbw.write(r);
                 fbw.newLine();
                 ++rowcounter;
+                if (rowcounter % CANCEL_CHECK_LINES == 0) {
+                    monitor.addLinesMerged(CANCEL_CHECK_LINES);
+                    monitor.checkCancelled();
+                }
                 if(bfb.empty()) {
                     bfb.fbr.close();
                     bfb.originalfile.delete();// we don't need you anymore
@@ -194,9 +258,15 @@ public class ExternalSort {
                     pq.add(bfb); // add it back
                 }
             }
+            monitor.addLinesMerged(rowcounter % CANCEL_CHECK_LINES);
+            completed = true;
         } finally {
             fbw.close();
-            for(BinaryFileBuffer bfb : pq ) bfb.close();
+            monitor.getMetrics().bytesWritten(outputfile.length());
+            for(BinaryFileBuffer bfb : pq ) {
+                bfb.close();
+                if (!completed) bfb.originalfile.delete();
+            }
         }
         return rowcounter;
     }
@@ -0,0 +1,88 @@
+package net.adamcin.commons.sling.file;
+
+/**
+ * Hook for collecting metrics from {@link ExternalSort} and {@link RangedTextFile}. Implementations are called
+ * synchronously from building and lookup threads, so they must be thread-safe and cheap.
+ *
+ * Set a process-wide instance with {@link RangedTextFile#setDefaultMetrics(FileMetrics)}, or attach one to a single
+ * build or file with {@link BuildMonitor#BuildMonitor(FileMetrics)} and {@link RangedTextFile#setMetrics(FileMetrics)}.
+ * {@link JmxFileMetrics} publishes the collected values as an MBean.
+ */
+public interface FileMetrics {
+
+    /**
+     * Discards everything
+     */
+    FileMetrics NONE = new FileMetrics() {
+        public void bytesRead(long count) { }
+        public void bytesWritten(long count) { }
+        public void runWritten(long lines) { }
+        public void mergeStarted(int fanIn) { }
+        public void phaseCompleted(BuildMonitor.Phase phase, long elapsedNanos) { }
+        public void indexBuilt(long ranges, long bytes, long elapsedNanos) { }
+        public void rangeLookup(long elapsedNanos, boolean found) { }
+        public void rangeCacheLookup(boolean hit) { }
+        public void saved(long bytes, long elapsedNanos) { }
+        public void loaded(long bytes, long elapsedNanos) { }
+    };
+
+    /**
+     * @param count bytes read from an input stream, sort run or persisted node
+     */
+    void bytesRead(long count);
+
+    /**
+     * @param count bytes written to a temp file, sort run or merged file
+     */
+    void bytesWritten(long count);
+
+    /**
+     * @param lines the number of lines in a sorted run written by {@link ExternalSort}
+     */
+    void runWritten(long lines);
+
+    /**
+     * @param fanIn the number of sorted runs merged in a single pass
+     */
+    void mergeStarted(int fanIn);
+
+    /**
+     * @param phase a build phase between {@link BuildMonitor.Phase#COPYING} and {@link BuildMonitor.Phase#COMPRESSING}
+     * @param elapsedNanos time spent in the phase
+     */
+    void phaseCompleted(BuildMonitor.Phase phase, long elapsedNanos);
+
+    /**
+     * @param ranges the number of ranges found
+     * @param bytes the size of the sorted file scanned for ranges
+     * @param elapsedNanos time spent scanning, not including range digests
+     */
+    void indexBuilt(long ranges, long bytes, long elapsedNanos);
+
+    /**
+     * Called for each range requested from {@link RangedTextFile#getRange(String)} and
+     * {@link RangedTextFile#getRanges(java.util.Collection)}, and for each range read by the iterators of
+     * {@link RangedTextFile#getRanges(String, String)} and {@link RangedTextFile#getRangesWithPrefix(String)}
+     * @param elapsedNanos time taken to return the range. For a batch, the time of the whole batch divided evenly
+     *                     between its ranges.
+     * @param found false if the range did not exist or could not be read
+     */
+    void rangeLookup(long elapsedNanos, boolean found);
+
+    /**
+     * @param hit true if a range was served from the {@link RangeCache}, by a single or a batched lookup
+     */
+    void rangeCacheLookup(boolean hit);
+
+    /**
+     * @param bytes data and index bytes written to the node
+     * @param elapsedNanos time taken by {@link RangedTextFile#saveToNode(javax.jcr.Node)}
+     */
+    void saved(long bytes, long elapsedNanos);
+
+    /**
+     * @param bytes data and index bytes read from the node
+     * @param elapsedNanos time taken by {@link RangedTextFile#loadFromNode(javax.jcr.Node, java.io.File)}
+     */
+    void loaded(long bytes, long elapsedNanos);
+}
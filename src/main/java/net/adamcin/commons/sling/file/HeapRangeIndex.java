@@ -0,0 +1,49 @@
+package net.adamcin.commons.sling.file;
+
+import net.adamcin.commons.sling.file.RangedTextFile.TextRange;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link RangeIndex} held entirely on the heap, used while building a {@link RangedTextFile} and for indexes persisted
+ * in the legacy serialized form. Lookups by rangeId are hashed, and positional access uses a rangeId-sorted array.
+ */
+final class HeapRangeIndex extends RangeIndex {
+
+    private final Map<String, TextRange> ranges;
+    private final TextRange[] sortedRanges;
+
+    HeapRangeIndex(final HashMap<String, TextRange> ranges) {
+        this.ranges = Collections.unmodifiableMap(ranges);
+        this.sortedRanges = ranges.values().toArray(new TextRange[ranges.size()]);
+        Arrays.sort(this.sortedRanges, RangedTextFile.RANGE_ID_CMP);
+    }
+
+    @Override
+    int size() {
+        return sortedRanges.length;
+    }
+
+    @Override
+    String getRangeId(int index) {
+        return sortedRanges[index].getRangeId();
+    }
+
+    @Override
+    TextRange get(int index) {
+        return sortedRanges[index];
+    }
+
+    @Override
+    TextRange get(String rangeId) {
+        return ranges.get(rangeId);
+    }
+
+    @Override
+    boolean contains(String rangeId) {
+        return ranges.containsKey(rangeId);
+    }
+}
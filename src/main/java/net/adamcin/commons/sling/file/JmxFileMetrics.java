@@ -0,0 +1,317 @@
+package net.adamcin.commons.sling.file;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link FileMetrics} implementation which aggregates counters, phase timings and a getRange latency histogram, and
+ * exposes them as a standard MBean. For example:
+ * <pre>
+ *     JmxFileMetrics metrics = JmxFileMetrics.register(JmxFileMetrics.DEFAULT_OBJECT_NAME);
+ *     RangedTextFile.setDefaultMetrics(metrics);
+ * </pre>
+ */
+public class JmxFileMetrics implements FileMetrics, JmxFileMetricsMBean {
+
+    public static final String DEFAULT_OBJECT_NAME = "net.adamcin.commons.sling:type=RangedTextFile";
+
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong runsWritten = new AtomicLong();
+    private final AtomicLong linesInRuns = new AtomicLong();
+    private final AtomicLong merges = new AtomicLong();
+    private final AtomicLong mergeFanInTotal = new AtomicLong();
+    private final AtomicLong mergeFanInMax = new AtomicLong();
+    private final AtomicLong[] phaseNanos = new AtomicLong[BuildMonitor.Phase.values().length];
+    private final AtomicLong rangesIndexed = new AtomicLong();
+    private final AtomicLong indexedBytes = new AtomicLong();
+    private final AtomicLong indexNanos = new AtomicLong();
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong saveNanos = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong rangeLookupMisses = new AtomicLong();
+    private final LatencyHistogram rangeLookups = new LatencyHistogram();
+    private final AtomicLong rangeCacheHits = new AtomicLong();
+    private final AtomicLong rangeCacheMisses = new AtomicLong();
+
+    private volatile ObjectName objectName;
+    private volatile MBeanServer mBeanServer;
+
+    public JmxFileMetrics() {
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Creates a new instance and registers it with the platform MBean server
+     * @param objectName
+     * @return the registered instance
+     * @throws JMException if the name is malformed or already registered
+     */
+    public static JmxFileMetrics register(String objectName) throws JMException {
+        JmxFileMetrics metrics = new JmxFileMetrics();
+        metrics.register(ManagementFactory.getPlatformMBeanServer(), new ObjectName(objectName));
+        return metrics;
+    }
+
+    public synchronized void register(MBeanServer server, ObjectName name) throws JMException {
+        if (this.objectName != null) {
+            throw new InstanceAlreadyExistsException("Already registered as " + this.objectName);
+        }
+        server.registerMBean(this, name);
+        this.mBeanServer = server;
+        this.objectName = name;
+    }
+
+    /**
+     * Unregisters the MBean, if registered. Metrics continue to be collected.
+     */
+    public synchronized void unregister() throws JMException {
+        if (this.objectName != null) {
+            try {
+                this.mBeanServer.unregisterMBean(this.objectName);
+            } catch (InstanceNotFoundException ignored) {
+                // already gone
+            } finally {
+                this.objectName = null;
+                this.mBeanServer = null;
+            }
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    //------------------------------------------------------------
+    // FileMetrics
+    //------------------------------------------------------------
+
+    public void bytesRead(long count) {
+        bytesRead.addAndGet(count);
+    }
+
+    public void bytesWritten(long count) {
+        bytesWritten.addAndGet(count);
+    }
+
+    public void runWritten(long lines) {
+        runsWritten.incrementAndGet();
+        linesInRuns.addAndGet(lines);
+    }
+
+    public void mergeStarted(int fanIn) {
+        merges.incrementAndGet();
+        mergeFanInTotal.addAndGet(fanIn);
+        long max = mergeFanInMax.get();
+        while (fanIn > max && !mergeFanInMax.compareAndSet(max, fanIn)) {
+            max = mergeFanInMax.get();
+        }
+    }
+
+    public void phaseCompleted(BuildMonitor.Phase phase, long elapsedNanos) {
+        phaseNanos[phase.ordinal()].addAndGet(elapsedNanos);
+    }
+
+    public void indexBuilt(long ranges, long bytes, long elapsedNanos) {
+        rangesIndexed.addAndGet(ranges);
+        indexedBytes.addAndGet(bytes);
+        indexNanos.addAndGet(elapsedNanos);
+    }
+
+    public void rangeLookup(long elapsedNanos, boolean found) {
+        rangeLookups.record(elapsedNanos);
+        if (!found) {
+            rangeLookupMisses.incrementAndGet();
+        }
+    }
+
+    public void rangeCacheLookup(boolean hit) {
+        if (hit) {
+            rangeCacheHits.incrementAndGet();
+        } else {
+            rangeCacheMisses.incrementAndGet();
+        }
+    }
+
+    public void saved(long bytes, long elapsedNanos) {
+        saves.incrementAndGet();
+        saveNanos.addAndGet(elapsedNanos);
+        bytesWritten.addAndGet(bytes);
+    }
+
+    public void loaded(long bytes, long elapsedNanos) {
+        loads.incrementAndGet();
+        loadNanos.addAndGet(elapsedNanos);
+        bytesRead.addAndGet(bytes);
+    }
+
+    //------------------------------------------------------------
+    // JmxFileMetricsMBean
+    //------------------------------------------------------------
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getRunsWritten() {
+        return runsWritten.get();
+    }
+
+    public long getLinesInRuns() {
+        return linesInRuns.get();
+    }
+
+    public long getMerges() {
+        return merges.get();
+    }
+
+    public double getMeanMergeFanIn() {
+        long n = merges.get();
+        return n == 0L ? 0.0D : (double) mergeFanInTotal.get() / n;
+    }
+
+    public int getMaxMergeFanIn() {
+        return (int) mergeFanInMax.get();
+    }
+
+    public long getCopyMillis() {
+        return getPhaseMillis(BuildMonitor.Phase.COPYING);
+    }
+
+    public long getSortMillis() {
+        return getPhaseMillis(BuildMonitor.Phase.SORTING);
+    }
+
+    public long getMergeMillis() {
+        return getPhaseMillis(BuildMonitor.Phase.MERGING);
+    }
+
+    public long getIndexMillis() {
+        return getPhaseMillis(BuildMonitor.Phase.INDEXING);
+    }
+
+    public long getDigestMillis() {
+        return getPhaseMillis(BuildMonitor.Phase.DIGESTING);
+    }
+
+    public long getCompressMillis() {
+        return getPhaseMillis(BuildMonitor.Phase.COMPRESSING);
+    }
+
+    public long getPhaseMillis(BuildMonitor.Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(phaseNanos[phase.ordinal()].get());
+    }
+
+    public long getRangesIndexed() {
+        return rangesIndexed.get();
+    }
+
+    public double getIndexRangesPerSecond() {
+        long nanos = indexNanos.get();
+        return nanos == 0L ? 0.0D : rangesIndexed.get() * 1.0e9D / nanos;
+    }
+
+    public double getIndexMegabytesPerSecond() {
+        long nanos = indexNanos.get();
+        return nanos == 0L ? 0.0D : indexedBytes.get() * 1.0e9D / nanos / (1024.0D * 1024.0D);
+    }
+
+    public long getSaves() {
+        return saves.get();
+    }
+
+    public long getSaveMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(saveNanos.get());
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getLoadMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(loadNanos.get());
+    }
+
+    public long getRangeLookups() {
+        return rangeLookups.getCount();
+    }
+
+    public long getRangeLookupMisses() {
+        return rangeLookupMisses.get();
+    }
+
+    public double getRangeLookupMeanMicros() {
+        return rangeLookups.getMeanMicros();
+    }
+
+    public long getRangeLookupP50Micros() {
+        return rangeLookups.getPercentileMicros(50.0D);
+    }
+
+    public long getRangeLookupP90Micros() {
+        return rangeLookups.getPercentileMicros(90.0D);
+    }
+
+    public long getRangeLookupP99Micros() {
+        return rangeLookups.getPercentileMicros(99.0D);
+    }
+
+    public long getRangeLookupMaxMicros() {
+        return rangeLookups.getMaxMicros();
+    }
+
+    public long[] getRangeLookupHistogram() {
+        return rangeLookups.getBuckets();
+    }
+
+    public long getRangeCacheHits() {
+        return rangeCacheHits.get();
+    }
+
+    public long getRangeCacheMisses() {
+        return rangeCacheMisses.get();
+    }
+
+    public double getRangeCacheHitRate() {
+        long hits = rangeCacheHits.get();
+        long total = hits + rangeCacheMisses.get();
+        return total == 0L ? 0.0D : (double) hits / total;
+    }
+
+    public void reset() {
+        bytesRead.set(0L);
+        bytesWritten.set(0L);
+        runsWritten.set(0L);
+        linesInRuns.set(0L);
+        merges.set(0L);
+        mergeFanInTotal.set(0L);
+        mergeFanInMax.set(0L);
+        for (AtomicLong nanos : phaseNanos) {
+            nanos.set(0L);
+        }
+        rangesIndexed.set(0L);
+        indexedBytes.set(0L);
+        indexNanos.set(0L);
+        saves.set(0L);
+        saveNanos.set(0L);
+        loads.set(0L);
+        loadNanos.set(0L);
+        rangeLookupMisses.set(0L);
+        rangeLookups.reset();
+        rangeCacheHits.set(0L);
+        rangeCacheMisses.set(0L);
+    }
+}
@@ -0,0 +1,74 @@
+package net.adamcin.commons.sling.file;
+
+/**
+ * Management interface of {@link JmxFileMetrics}. Times are cumulative since the last {@link #reset()}.
+ */
+public interface JmxFileMetricsMBean {
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getRunsWritten();
+
+    long getLinesInRuns();
+
+    long getMerges();
+
+    double getMeanMergeFanIn();
+
+    int getMaxMergeFanIn();
+
+    long getCopyMillis();
+
+    long getSortMillis();
+
+    long getMergeMillis();
+
+    long getIndexMillis();
+
+    long getDigestMillis();
+
+    long getCompressMillis();
+
+    long getRangesIndexed();
+
+    double getIndexRangesPerSecond();
+
+    double getIndexMegabytesPerSecond();
+
+    long getSaves();
+
+    long getSaveMillis();
+
+    long getLoads();
+
+    long getLoadMillis();
+
+    long getRangeLookups();
+
+    long getRangeLookupMisses();
+
+    double getRangeLookupMeanMicros();
+
+    long getRangeLookupP50Micros();
+
+    long getRangeLookupP90Micros();
+
+    long getRangeLookupP99Micros();
+
+    long getRangeLookupMaxMicros();
+
+    /**
+     * @return lookup counts in power-of-two microsecond buckets: element 0 is under 1us and element i is under 2^i us
+     */
+    long[] getRangeLookupHistogram();
+
+    long getRangeCacheHits();
+
+    long getRangeCacheMisses();
+
+    double getRangeCacheHitRate();
+
+    void reset();
+}
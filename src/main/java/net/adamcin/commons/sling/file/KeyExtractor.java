@@ -0,0 +1,21 @@
+package net.adamcin.commons.sling.file;
+
+import java.nio.charset.Charset;
+
+/**
+ * Extracts the rangeId from the payload of a record framed by a {@link RecordFramer}. Only the bytes of the key need
+ * to be decoded. See {@link Records} for the built-in extractors.
+ *
+ * Extractors hold no per-record state and may be shared between threads.
+ */
+public interface KeyExtractor {
+
+    /**
+     * @param record the framed record
+     * @param offset position of the first payload byte
+     * @param length number of payload bytes
+     * @param charset encoding of the key bytes
+     * @return the rangeId of the record, never null
+     */
+    String extractKey(byte[] record, int offset, int length, Charset charset);
+}
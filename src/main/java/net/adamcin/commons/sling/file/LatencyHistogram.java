@@ -0,0 +1,97 @@
+package net.adamcin.commons.sling.file;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets. Bucket 0 counts samples under 1 microsecond and
+ * bucket i counts samples from 2^(i-1) up to 2^i microseconds; the last bucket is open-ended.
+ */
+final class LatencyHistogram {
+
+    static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long elapsedNanos) {
+        if (elapsedNanos < 0L) {
+            elapsedNanos = 0L;
+        }
+        buckets.incrementAndGet(bucketOf(elapsedNanos / 1000L));
+        count.incrementAndGet();
+        totalNanos.addAndGet(elapsedNanos);
+
+        long max = maxNanos.get();
+        while (elapsedNanos > max && !maxNanos.compareAndSet(max, elapsedNanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    static int bucketOf(long micros) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * @return the upper bound in microseconds of the bucket
+     */
+    static long upperBoundMicros(int bucket) {
+        return 1L << bucket;
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getMaxMicros() {
+        return maxNanos.get() / 1000L;
+    }
+
+    double getMeanMicros() {
+        long n = count.get();
+        return n == 0L ? 0.0D : totalNanos.get() / 1000.0D / n;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the upper bound in microseconds of the bucket containing the percentile, or 0 if nothing was recorded
+     */
+    long getPercentileMicros(double percentile) {
+        long[] snapshot = getBuckets();
+        long total = 0L;
+        for (long bucket : snapshot) {
+            total += bucket;
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0D);
+        long seen = 0L;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0L) {
+                return Math.min(upperBoundMicros(i), Math.max(1L, getMaxMicros()));
+            }
+        }
+        return getMaxMicros();
+    }
+
+    long[] getBuckets() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+        }
+        return snapshot;
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        totalNanos.set(0L);
+        maxNanos.set(0L);
+    }
+}
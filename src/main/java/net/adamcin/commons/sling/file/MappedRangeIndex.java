@@ -0,0 +1,278 @@
+package net.adamcin.commons.sling.file;
+
+import net.adamcin.commons.sling.file.RangedTextFile.TextRange;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link RangeIndex} which is memory-mapped from a file in a columnar layout and searched in place, so that opening
+ * an index costs the same regardless of how many ranges it holds, and the ranges never occupy the heap.
+ *
+ * The layout is a fixed header followed by four columns, each holding one fixed-width slot per range in rangeId
+ * order:
+ * <ol>
+ *     <li>header: magic (int), version (int), range count (long), maximum rangeId length in chars (int), digest
+ *     length in bytes (int)</li>
+ *     <li>rangeIds: char count (unsigned short) followed by the UTF-16 chars, padded to the maximum length</li>
+ *     <li>offsets (long)</li>
+ *     <li>lengths (long)</li>
+ *     <li>range digests (bytes)</li>
+ * </ol>
+ * Comparing UTF-16 chars in order matches {@link String#compareTo(String)}, so binary searches over the rangeId
+ * column agree with {@link RangedTextFile#SORT_CMP}.
+ */
+final class MappedRangeIndex extends RangeIndex {
+
+    static final int MAGIC = 0x52544649;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + 4;
+
+    /**
+     * Largest region mapped by a single buffer. Columns larger than this are split across several buffers at slot
+     * boundaries.
+     */
+    private static final long MAX_CHUNK_LENGTH = 1L << 30;
+
+    private final File file;
+    private final int size;
+    private final int maxIdChars;
+    private final int digestLength;
+    private final Column ids;
+    private final Column offsets;
+    private final Column lengths;
+    private final Column digests;
+
+    private MappedRangeIndex(final File file, final FileChannel channel, final int size, final int maxIdChars,
+                             final int digestLength) throws IOException {
+        this.file = file;
+        this.size = size;
+        this.maxIdChars = maxIdChars;
+        this.digestLength = digestLength;
+
+        long position = HEADER_LENGTH;
+        this.ids = new Column(channel, position, size, 2 + 2 * maxIdChars);
+        position += this.ids.getLength();
+        this.offsets = new Column(channel, position, size, 8);
+        position += this.offsets.getLength();
+        this.lengths = new Column(channel, position, size, 8);
+        position += this.lengths.getLength();
+        this.digests = new Column(channel, position, size, digestLength);
+    }
+
+    /**
+     * @param file
+     * @return true if the file starts with the columnar index magic number
+     * @throws IOException
+     */
+    static boolean isColumnar(final File file) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return file.length() >= HEADER_LENGTH && in.readInt() == MAGIC;
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Maps the index file. The file is deleted when the index is closed.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static MappedRangeIndex open(final File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_LENGTH || raf.readInt() != MAGIC) {
+                throw new IOException("Not a columnar range index: " + file);
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported columnar range index version " + version + ": " + file);
+            }
+            long size = raf.readLong();
+            int maxIdChars = raf.readInt();
+            int digestLength = raf.readInt();
+            if (size < 0 || size > Integer.MAX_VALUE || maxIdChars < 0 || digestLength < 0) {
+                throw new IOException("Corrupt columnar range index header: " + file);
+            }
+
+            long expected = HEADER_LENGTH + size * (2 + 2L * maxIdChars + 8 + 8 + digestLength);
+            if (raf.length() < expected) {
+                throw new IOException("Columnar range index is truncated: " + file);
+            }
+
+            // mappings remain valid after the channel is closed
+            return new MappedRangeIndex(file, raf.getChannel(), (int) size, maxIdChars, digestLength);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes any index in the columnar format
+     * @param index
+     * @param out
+     * @throws IOException
+     */
+    static void write(final RangeIndex index, final OutputStream out) throws IOException {
+        int size = index.size();
+        int maxIdChars = 0;
+        int digestLength = 0;
+        for (int i = 0; i < size; i++) {
+            TextRange textRange = index.get(i);
+            maxIdChars = Math.max(maxIdChars, textRange.getRangeId().length());
+            if (textRange.getRangeDigest() != null) {
+                digestLength = Math.max(digestLength, textRange.getRangeDigest().length);
+            }
+        }
+        if (maxIdChars > 0xffff) {
+            throw new IOException("rangeId is too long for the columnar index: " + maxIdChars + " chars");
+        }
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeLong(size);
+        dos.writeInt(maxIdChars);
+        dos.writeInt(digestLength);
+
+        for (int i = 0; i < size; i++) {
+            String rangeId = index.getRangeId(i);
+            dos.writeShort(rangeId.length());
+            dos.writeChars(rangeId);
+            for (int pad = rangeId.length(); pad < maxIdChars; pad++) {
+                dos.writeChar(0);
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            dos.writeLong(index.get(i).getOffset());
+        }
+        for (int i = 0; i < size; i++) {
+            dos.writeLong(index.get(i).getLength());
+        }
+        byte[] empty = new byte[digestLength];
+        for (int i = 0; i < size; i++) {
+            byte[] rangeDigest = index.get(i).getRangeDigest();
+            if (rangeDigest == null || rangeDigest.length != digestLength) {
+                dos.write(empty);
+            } else {
+                dos.write(rangeDigest);
+            }
+        }
+        dos.flush();
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    String getRangeId(int index) {
+        checkIndex(index);
+        ByteBuffer buffer = ids.buffer(index);
+        int pos = ids.position(index);
+        int len = buffer.getShort(pos) & 0xffff;
+        char[] chars = new char[len];
+        for (int i = 0; i < len; i++) {
+            chars[i] = buffer.getChar(pos + 2 + 2 * i);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    int compareRangeId(int index, String key) {
+        checkIndex(index);
+        ByteBuffer buffer = ids.buffer(index);
+        int pos = ids.position(index);
+        int len = buffer.getShort(pos) & 0xffff;
+        int common = Math.min(len, key.length());
+        for (int i = 0; i < common; i++) {
+            char c = buffer.getChar(pos + 2 + 2 * i);
+            char k = key.charAt(i);
+            if (c != k) {
+                return c - k;
+            }
+        }
+        return len - key.length();
+    }
+
+    @Override
+    TextRange get(int index) {
+        checkIndex(index);
+        TextRange textRange = new TextRange(getRangeId(index),
+                offsets.buffer(index).getLong(offsets.position(index)),
+                lengths.buffer(index).getLong(lengths.position(index)));
+        if (digestLength > 0) {
+            byte[] rangeDigest = new byte[digestLength];
+            ByteBuffer buffer = digests.buffer(index);
+            int pos = digests.position(index);
+            for (int i = 0; i < digestLength; i++) {
+                rangeDigest[i] = buffer.get(pos + i);
+            }
+            textRange.setRangeDigest(rangeDigest);
+        }
+        return textRange;
+    }
+
+    int getMaxIdChars() {
+        return maxIdChars;
+    }
+
+    @Override
+    void close() {
+        // a mapped file can't be unmapped explicitly. Deleting it is fine on POSIX file systems, and otherwise the
+        // mapping is released when the buffers are collected.
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /**
+     * A column of fixed-width slots, mapped in one or more read-only buffers which never split a slot
+     */
+    static final class Column {
+        private final int slotLength;
+        private final int slotsPerChunk;
+        private final long length;
+        private final MappedByteBuffer[] chunks;
+
+        Column(final FileChannel channel, final long start, final int slots, final int slotLength) throws IOException {
+            this.slotLength = slotLength;
+            this.length = (long) slots * slotLength;
+            this.slotsPerChunk = slotLength == 0 ? Integer.MAX_VALUE : (int) (MAX_CHUNK_LENGTH / slotLength);
+
+            int chunkCount = slotLength == 0 || slots == 0 ? 0 : (slots + slotsPerChunk - 1) / slotsPerChunk;
+            this.chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                long chunkStart = start + (long) i * slotsPerChunk * slotLength;
+                long chunkLength = Math.min((long) slotsPerChunk * slotLength, this.length - (chunkStart - start));
+                this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkLength);
+            }
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        ByteBuffer buffer(final int slot) {
+            return chunks[slot / slotsPerChunk];
+        }
+
+        int position(final int slot) {
+            return (slot % slotsPerChunk) * slotLength;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package net.adamcin.commons.sling.file;
+
+import java.security.MessageDigest;
+
+/**
+ * Streaming, pure-Java implementation of the 128-bit x64 variant of MurmurHash3 (seed 0), exposed as a
+ * {@link MessageDigest} so that it can be used anywhere a JCA digest is, including {@link java.security.DigestInputStream}.
+ * It is not cryptographically secure, but is several times cheaper per byte than SHA-1, which makes it a better fit
+ * for change detection. The digest bytes are h1 followed by h2, each in little-endian order.
+ */
+final class Murmur3Digest extends MessageDigest implements Cloneable {
+
+    static final String ALGORITHM = "Murmur3_128";
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final byte[] buffer = new byte[16];
+    private int buffered;
+    private long length;
+    private long h1;
+    private long h2;
+
+    Murmur3Digest() {
+        super(ALGORITHM);
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return 16;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        buffer[buffered++] = input;
+        if (buffered == 16) {
+            processBlock(buffer, 0);
+            buffered = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+        int pos = offset;
+        int end = offset + len;
+
+        if (buffered > 0) {
+            while (buffered < 16 && pos < end) {
+                buffer[buffered++] = input[pos++];
+            }
+            if (buffered < 16) {
+                return;
+            }
+            processBlock(buffer, 0);
+            buffered = 0;
+        }
+
+        while (end - pos >= 16) {
+            processBlock(input, pos);
+            pos += 16;
+        }
+
+        while (pos < end) {
+            buffer[buffered++] = input[pos++];
+        }
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long k1 = 0L;
+        long k2 = 0L;
+        long totalLength = length + buffered;
+
+        for (int i = buffered - 1; i >= 8; i--) {
+            k2 ^= ((long) buffer[i] & 0xff) << ((i - 8) * 8);
+        }
+        if (buffered > 8) {
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+
+        for (int i = Math.min(buffered, 8) - 1; i >= 0; i--) {
+            k1 ^= ((long) buffer[i] & 0xff) << (i * 8);
+        }
+        if (buffered > 0) {
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+
+        h1 ^= totalLength;
+        h2 ^= totalLength;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        byte[] digest = new byte[16];
+        putLongLE(digest, 0, h1);
+        putLongLE(digest, 8, h2);
+
+        engineReset();
+        return digest;
+    }
+
+    @Override
+    protected void engineReset() {
+        buffered = 0;
+        length = 0L;
+        h1 = 0L;
+        h2 = 0L;
+    }
+
+    @Override
+    public Object clone() throws CloneNotSupportedException {
+        Murmur3Digest copy = new Murmur3Digest();
+        System.arraycopy(buffer, 0, copy.buffer, 0, buffered);
+        copy.buffered = buffered;
+        copy.length = length;
+        copy.h1 = h1;
+        copy.h2 = h2;
+        return copy;
+    }
+
+    private void processBlock(final byte[] block, final int offset) {
+        long k1 = getLongLE(block, offset);
+        long k2 = getLongLE(block, offset + 8);
+
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+
+        length += 16;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLongLE(final byte[] bytes, final int offset) {
+        return ((long) bytes[offset] & 0xff)
+                | ((long) bytes[offset + 1] & 0xff) << 8
+                | ((long) bytes[offset + 2] & 0xff) << 16
+                | ((long) bytes[offset + 3] & 0xff) << 24
+                | ((long) bytes[offset + 4] & 0xff) << 32
+                | ((long) bytes[offset + 5] & 0xff) << 40
+                | ((long) bytes[offset + 6] & 0xff) << 48
+                | ((long) bytes[offset + 7] & 0xff) << 56;
+    }
+
+    private static void putLongLE(final byte[] bytes, final int offset, final long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (i * 8));
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package net.adamcin.commons.sling.file;
+
+import net.adamcin.commons.sling.file.RangedTextFile.TextRange;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Indexes a sorted file on several threads. The file is split into chunks at record boundaries, each chunk is scanned
+ * for ranges and digested independently, and ranges which span a chunk boundary are stitched together afterwards.
+ * The range digests are then computed in parallel over groups of ranges.
+ *
+ * The full-file digest is a two-level tree hash, so that it doesn't depend on the number of threads:
+ * <pre>
+ *     digest = H(H(chunk[0]) || H(chunk[1]) || ... || H(chunk[n-1]))
+ * </pre>
+ * where H is the digest algorithm, and chunk[k] starts at the first record boundary at or after k * chunkSize
+ * ({@link #TREE_CHUNK_SIZE} for every persisted file). An empty file has no chunks.
+ */
+final class ParallelIndexer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelIndexer.class);
+
+    /**
+     * Nominal chunk size of the tree digest format. Changing it changes every tree digest.
+     */
+    static final long TREE_CHUNK_SIZE = 64L * 1024L * 1024L;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final Charset charset;
+    private final RecordFramer framer;
+    private final KeyExtractor keyExtractor;
+    private final String digestAlgorithm;
+    private final int parallelism;
+    private final long chunkSize;
+    private final BuildMonitor monitor;
+
+    private final HashMap<String, TextRange> ranges = new HashMap<String, TextRange>();
+    private byte[] digest;
+
+    ParallelIndexer(final File file, final Charset charset, final RecordFramer framer,
+                    final KeyExtractor keyExtractor, final String digestAlgorithm, final int parallelism,
+                    final long chunkSize, final BuildMonitor monitor) {
+        this.file = file;
+        this.charset = charset;
+        this.framer = framer;
+        this.keyExtractor = keyExtractor;
+        this.digestAlgorithm = digestAlgorithm;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+        this.monitor = monitor;
+    }
+
+    /**
+     * @return the ranges, with their digests
+     */
+    HashMap<String, TextRange> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return the tree digest of the file
+     */
+    byte[] getDigest() {
+        return digest;
+    }
+
+    void index() throws IOException {
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+
+        // fail fast on an unsupported algorithm
+        MessageDigest rootDigester = RangedTextFile.getDigester(digestAlgorithm);
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, ParallelIndexer.class.getSimpleName() + "-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            long[] boundaries = findBoundaries();
+
+            List<Future<Chunk>> chunkFutures = new ArrayList<Future<Chunk>>(boundaries.length - 1);
+            for (int i = 0; i < boundaries.length - 1; i++) {
+                final long chunkStart = boundaries[i];
+                final long chunkEnd = boundaries[i + 1];
+                chunkFutures.add(executor.submit(new Callable<Chunk>() {
+                    public Chunk call() throws Exception {
+                        return scanChunk(chunkStart, chunkEnd);
+                    }
+                }));
+            }
+
+            // stitch the segments of each chunk in file order
+            TextRange last = null;
+            for (Future<Chunk> future : chunkFutures) {
+                Chunk chunk = await(future);
+                rootDigester.update(chunk.digest);
+                for (TextRange segment : chunk.segments) {
+                    if (last != null && last.getRangeId().equals(segment.getRangeId())) {
+                        last = new TextRange(last.getRangeId(), last.getOffset(),
+                                last.getLength() + segment.getLength());
+                    } else {
+                        if (last != null) {
+                            addRange(last);
+                        }
+                        last = segment;
+                    }
+                }
+            }
+            if (last != null) {
+                addRange(last);
+            }
+            this.digest = rootDigester.digest();
+            monitor.getMetrics().indexBuilt(ranges.size(), file.length(), System.nanoTime() - startNanos);
+
+            monitor.setPhase(BuildMonitor.Phase.DIGESTING);
+            digestRanges(executor);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long end = System.currentTimeMillis();
+        LOGGER.info("[index] Indexed {} ranges on {} threads in {} seconds.", new Object[]{ ranges.size(),
+                parallelism, String.format("%.2f", (end - start) / 1000.0D)});
+    }
+
+    private void addRange(final TextRange textRange) {
+        if (ranges.put(textRange.getRangeId(), textRange) != null) {
+            LOGGER.warn("[index] rangeId {} appears again at offset {}. The file is not sorted, and only the last "
+                    + "occurrence is indexed.", textRange.getRangeId(), textRange.getOffset());
+        }
+        monitor.addRangeIndexed();
+    }
+
+    /**
+     * @return chunk start offsets, followed by the file length
+     */
+    long[] findBoundaries() throws IOException {
+        long length = file.length();
+        List<Long> boundaries = new ArrayList<Long>();
+        if (length > 0L) {
+            boundaries.add(0L);
+            if (framer instanceof Records.DelimitedFramer) {
+                findDelimitedBoundaries(((Records.DelimitedFramer) framer).getDelimiter(), length, boundaries);
+            } else {
+                findRecordBoundaries(length, boundaries);
+            }
+        }
+        boundaries.add(length);
+
+        long[] result = new long[boundaries.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = boundaries.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Seeks to each nominal boundary and scans forward for the end of the current record
+     */
+    private void findDelimitedBoundaries(final byte delimiter, final long length, final List<Long> boundaries)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long previous = 0L;
+            for (long nominal = chunkSize; nominal < length; nominal += chunkSize) {
+                if (nominal <= previous) {
+                    // a long record already carried the previous boundary past this one
+                    continue;
+                }
+                // a record starts at nominal if the byte before it is a delimiter
+                long pos = nominal - 1L;
+                long boundary = -1L;
+                raf.seek(pos);
+                int read;
+                scan:
+                while ((read = raf.read(buffer)) > 0) {
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == delimiter) {
+                            boundary = pos + i + 1L;
+                            break scan;
+                        }
+                    }
+                    pos += read;
+                }
+                if (boundary < 0L || boundary >= length) {
+                    break;
+                }
+                boundaries.add(boundary);
+                previous = boundary;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads through the records of a file whose framing can't be found by seeking, such as length-prefixed records
+     */
+    private void findRecordBoundaries(final long length, final List<Long> boundaries) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            long pos = 0L;
+            long nominal = chunkSize;
+            byte[] record;
+            while (nominal < length && (record = framer.next(in)) != null) {
+                pos += record.length;
+                if (pos >= nominal && pos < length) {
+                    boundaries.add(pos);
+                    while (nominal <= pos) {
+                        nominal += chunkSize;
+                    }
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    Chunk scanChunk(final long chunkStart, final long chunkEnd) throws IOException {
+        MessageDigest digester = RangedTextFile.getDigester(digestAlgorithm);
+        List<TextRange> segments = new ArrayList<TextRange>();
+        InputStream in = null;
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            in = fis;
+            fis.getChannel().position(chunkStart);
+            in = new BufferedInputStream(new BoundedDigestInputStream(fis, chunkEnd - chunkStart, digester),
+                    BUFFER_SIZE);
+
+            long pos = chunkStart;
+            long segmentStart = pos;
+            long nRecords = 0L;
+            String lastRangeId = null;
+            byte[] record;
+            while ((record = framer.next(in)) != null) {
+                if ((++nRecords & 0x3ffL) == 0L) {
+                    monitor.checkCancelled();
+                }
+                String rangeId = keyExtractor.extractKey(record, framer.payloadOffset(record),
+                        framer.payloadLength(record), charset);
+                if (!rangeId.equals(lastRangeId)) {
+                    if (lastRangeId != null) {
+                        segments.add(new TextRange(lastRangeId, segmentStart, pos - segmentStart));
+                    }
+                    lastRangeId = rangeId;
+                    segmentStart = pos;
+                }
+                pos += record.length;
+            }
+            if (lastRangeId != null) {
+                segments.add(new TextRange(lastRangeId, segmentStart, pos - segmentStart));
+            }
+            if (pos != chunkEnd) {
+                throw new IOException("Chunk [" + chunkStart + ", " + chunkEnd + ") ended at " + pos);
+            }
+            return new Chunk(segments, digester.digest());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Splits the ranges in offset order into groups of roughly equal bytes, and digests each group sequentially
+     */
+    private void digestRanges(final ExecutorService executor) throws IOException {
+        final TextRange[] byOffset = ranges.values().toArray(new TextRange[ranges.size()]);
+        Arrays.sort(byOffset, RangedTextFile.OFFSET_CMP);
+
+        int groups = Math.max(1, Math.min(byOffset.length, parallelism * 4));
+        long groupBytes = file.length() / groups + 1L;
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(groups);
+        int from = 0;
+        while (from < byOffset.length) {
+            long limit = byOffset[from].getOffset() + groupBytes;
+            int to = from + 1;
+            while (to < byOffset.length && byOffset[to].getOffset() < limit) {
+                to++;
+            }
+            final int groupFrom = from;
+            final int groupTo = to;
+            futures.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    digestGroup(byOffset, groupFrom, groupTo);
+                    return null;
+                }
+            }));
+            from = to;
+        }
+        for (Future<?> future : futures) {
+            await(future);
+        }
+    }
+
+    private void digestGroup(final TextRange[] byOffset, final int from, final int to) throws IOException {
+        MessageDigest digester = RangedTextFile.getDigester(digestAlgorithm);
+        InputStream in = null;
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            in = fis;
+            long position = byOffset[from].getOffset();
+            fis.getChannel().position(position);
+            in = new BufferedInputStream(fis, BUFFER_SIZE);
+            for (int i = from; i < to; i++) {
+                TextRange textRange = byOffset[i];
+                RangedTextFile.skipFully(in, textRange.getOffset() - position);
+                digester.reset();
+                textRange.setRangeDigest(RangedTextFile.digest(in, textRange.getLength(), digester));
+                position = textRange.getOffset() + textRange.getLength();
+                monitor.addRangeDigested();
+                monitor.checkCancelled();
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException iioe = new InterruptedIOException("Interrupted while indexing " + file);
+            iioe.initCause(e);
+            throw iioe;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            IOException ioe = new IOException("Failed to index " + file);
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    static final class Chunk {
+        final List<TextRange> segments;
+        final byte[] digest;
+
+        Chunk(final List<TextRange> segments, final byte[] digest) {
+            this.segments = segments;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Reads at most a fixed number of bytes, digesting them
+     */
+    static final class BoundedDigestInputStream extends FilterInputStream {
+        private final MessageDigest digester;
+        private long remaining;
+
+        BoundedDigestInputStream(final InputStream in, final long length, final MessageDigest digester) {
+            super(in);
+            this.remaining = length;
+            this.digester = digester;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0L) {
+                return -1;
+            }
+            int read = super.read();
+            if (read != -1) {
+                remaining--;
+                digester.update((byte) read);
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0L) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+                digester.update(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            throw new IOException("skip is not supported");
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package net.adamcin.commons.sling.file;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of decoded range text, keyed on rangeId. The cache is split into independently locked
+ * segments by rangeId hash, each of which holds an equal share of the total byte budget, so concurrent readers of
+ * different ranges rarely contend. Entries are never invalidated, because the data file backing a
+ * {@link RangedTextFile} is immutable once indexed.
+ */
+public class RangeCache {
+
+    static final int DEFAULT_SEGMENTS = 16;
+
+    /**
+     * Rough per-entry overhead of the map entry, key and value objects, used when estimating entry size.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Segment[] segments;
+    private final long maxBytes;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maxBytes the approximate upper bound on heap used by cached entries
+     */
+    public RangeCache(final long maxBytes) {
+        this(maxBytes, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxBytes the approximate upper bound on heap used by cached entries
+     * @param segmentCount the number of independently locked segments
+     */
+    public RangeCache(final long maxBytes, final int segmentCount) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException("segmentCount must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment(Math.max(1L, maxBytes / segmentCount));
+        }
+    }
+
+    /**
+     * @param rangeId
+     * @return the cached range text, or null if not cached
+     */
+    public String get(final String rangeId) {
+        String text = segmentFor(rangeId).get(rangeId);
+        if (text != null) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+        return text;
+    }
+
+    /**
+     * Caches the range text, evicting least recently used entries from the same segment as necessary. Text larger
+     * than a segment's share of the byte budget is not cached.
+     * @param rangeId
+     * @param text
+     */
+    public void put(final String rangeId, final String text) {
+        if (rangeId != null && text != null) {
+            evictionCount.addAndGet(segmentFor(rangeId).put(rangeId, text));
+        }
+    }
+
+    /**
+     * Removes all entries. Counters are not reset.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getSizeInBytes() {
+        long size = 0L;
+        for (Segment segment : segments) {
+            size += segment.getSizeInBytes();
+        }
+        return size;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "RangeCache{" +
+                "size=" + size() +
+                ", bytes=" + getSizeInBytes() +
+                ", maxBytes=" + maxBytes +
+                ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() +
+                ", evictions=" + getEvictionCount() +
+                '}';
+    }
+
+    static long estimateSize(final String rangeId, final String text) {
+        return ENTRY_OVERHEAD + 2L * (rangeId.length() + text.length());
+    }
+
+    private Segment segmentFor(final String rangeId) {
+        int h = rangeId.hashCode();
+        h ^= (h >>> 16);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    static final class Segment {
+        private final long maxBytes;
+        private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(16, 0.75f, true);
+        private long sizeInBytes;
+
+        Segment(final long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized String get(final String rangeId) {
+            return entries.get(rangeId);
+        }
+
+        /**
+         * @return the number of entries evicted to make room
+         */
+        synchronized int put(final String rangeId, final String text) {
+            long entrySize = estimateSize(rangeId, text);
+            if (entrySize > maxBytes) {
+                return 0;
+            }
+
+            String previous = entries.put(rangeId, text);
+            if (previous != null) {
+                sizeInBytes -= estimateSize(rangeId, previous);
+            }
+            sizeInBytes += entrySize;
+
+            int evicted = 0;
+            Iterator<Map.Entry<String, String>> it = entries.entrySet().iterator();
+            while (sizeInBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, String> eldest = it.next();
+                if (!eldest.getKey().equals(rangeId)) {
+                    sizeInBytes -= estimateSize(eldest.getKey(), eldest.getValue());
+                    it.remove();
+                    evicted++;
+                }
+            }
+            return evicted;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            sizeInBytes = 0L;
+        }
+
+        synchronized long getSizeInBytes() {
+            return sizeInBytes;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.adamcin.commons.sling.file;
+
+import net.adamcin.commons.sling.file.RangedTextFile.TextRange;
+
+import java.io.*;
+
+/**
+ * Read access to the ranges of a {@link RangedTextFile}, addressed either by rangeId or by position in rangeId order.
+ * Implementations are immutable once constructed and safe for concurrent readers.
+ */
+abstract class RangeIndex {
+
+    /**
+     * @return the number of ranges
+     */
+    abstract int size();
+
+    /**
+     * @param index position in rangeId order
+     * @return the rangeId at the specified position
+     */
+    abstract String getRangeId(int index);
+
+    /**
+     * @param index position in rangeId order
+     * @return the range at the specified position
+     */
+    abstract TextRange get(int index);
+
+    /**
+     * Compares the rangeId at the specified position to the key, using {@link RangedTextFile#SORT_CMP} ordering
+     * @param index position in rangeId order
+     * @param key
+     * @return a negative integer, zero, or a positive integer as the rangeId is less than, equal to, or greater than
+     * the key
+     */
+    int compareRangeId(int index, String key) {
+        return RangedTextFile.SORT_CMP.compare(getRangeId(index), key);
+    }
+
+    /**
+     * Releases resources held by the index
+     */
+    void close() {
+    }
+
+    /**
+     * @param rangeId
+     * @return the range with the specified rangeId, or null if there is none
+     */
+    TextRange get(String rangeId) {
+        int index = indexOf(rangeId);
+        return index >= 0 ? get(index) : null;
+    }
+
+    boolean contains(String rangeId) {
+        return indexOf(rangeId) >= 0;
+    }
+
+    /**
+     * @param rangeId
+     * @return the position of the rangeId, or -1 if it is not in the index
+     */
+    int indexOf(String rangeId) {
+        int index = lowerIndex(rangeId);
+        if (index < size() && compareRangeId(index, rangeId) == 0) {
+            return index;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position of the first range whose id is greater than or equal to rangeId
+     */
+    int lowerIndex(String rangeId) {
+        int low = 0, high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareRangeId(mid, rangeId) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the position of the first range whose id is strictly greater than rangeId
+     */
+    int upperIndex(String rangeId) {
+        int low = 0, high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareRangeId(mid, rangeId) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Writes the index in the columnar format read by {@link MappedRangeIndex}
+     * @param out
+     * @throws IOException
+     */
+    void writeColumnar(OutputStream out) throws IOException {
+        MappedRangeIndex.write(this, out);
+    }
+}
@@ -1,7 +1,6 @@
 package net.adamcin.commons.sling.file;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.input.CountingInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -10,15 +9,15 @@ import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.ValueFactory;
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class RangedTextFile {
     private static final Logger LOGGER = LoggerFactory.getLogger(RangedTextFile.class);
@@ -28,22 +27,90 @@ public class RangedTextFile {
     public static final String PN_INDEX             = "index";
     public static final String PN_ENCODING          = "encoding";
     public static final String PN_RANGE_ID_WIDTH    = "rangeIdWidth";
+    public static final String PN_COMPRESSION       = "compression";
+    public static final String PN_DIGEST_ALGORITHM  = "digestAlgorithm";
+    public static final String PN_DIGEST_FORMAT     = "digestFormat";
+
+    /**
+     * SHA-1, which was used for all digests before the algorithm was configurable. Nodes without a
+     * {@link #PN_DIGEST_ALGORITHM} property are assumed to use it.
+     */
+    public static final String DIGEST_SHA1 = "SHA";
+
+    /**
+     * Non-cryptographic 128-bit MurmurHash3, which is sufficient for change detection and much cheaper to compute
+     */
+    public static final String DIGEST_MURMUR3_128 = Murmur3Digest.ALGORITHM;
+
+    public static final String DEFAULT_DIGEST_ALGORITHM = DIGEST_MURMUR3_128;
+
+    /**
+     * Value of the {@link #PN_DIGEST_FORMAT} property for files indexed in parallel, whose full-file digest is a tree
+     * hash of fixed-size chunk digests rather than a digest of the whole stream. Tree and stream digests of the same
+     * content are not equal, but range digests are the same in both formats.
+     */
+    public static final String DIGEST_FORMAT_TREE = "tree";
+
+    /**
+     * Value of the {@link #PN_COMPRESSION} property for data files stored as independently deflated blocks
+     */
+    public static final String COMPRESSION_BLOCK_DEFLATE = "blockDeflate";
 
     private static final int RANGES_MAP_INIT_SIZE = 200000;
+
+    /**
+     * Largest range which can be materialized as a single byte array or String. Larger ranges must be read with
+     * {@link #openRange(String)}.
+     */
+    static final long MAX_MATERIALIZED_RANGE = Integer.MAX_VALUE - 8;
+
+    private static final int DIGEST_CHUNK_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_COMPRESSED_BLOCK_SIZE = BlockCompressedFile.DEFAULT_BLOCK_SIZE;
+
+    /**
+     * Maximum number of unrequested bytes between two requested ranges that will be read through rather than
+     * seeked over when coalescing a batched read.
+     */
+    static final int COALESCE_GAP = 32 * 1024;
+
+    /**
+     * Maximum size of a single coalesced read. Ranges larger than this are still read, just on their own.
+     */
+    static final int MAX_COALESCED_READ = 1024 * 1024;
+
     public static final Comparator<String> SORT_CMP = new Comparator<String>() {
         public int compare(String left, String right) {
             return left.compareTo(right);
         }
     };
 
+    static final Comparator<TextRange> OFFSET_CMP = new Comparator<TextRange>() {
+        public int compare(TextRange left, TextRange right) {
+            return left.getOffset() < right.getOffset() ? -1 : (left.getOffset() == right.getOffset() ? 0 : 1);
+        }
+    };
+
+    static final Comparator<TextRange> RANGE_ID_CMP = new Comparator<TextRange>() {
+        public int compare(TextRange left, TextRange right) {
+            return SORT_CMP.compare(left.getRangeId(), right.getRangeId());
+        }
+    };
+
     private final File tempFile;
-    private final HashMap<String, TextRange> serializableRanges;
-    private final Map<String, TextRange> ranges;
+    private final BlockCompressedFile compressedFile;
+    private final RangeIndex index;
     private final String encoding;
     private final int rangeIdWidth;
     private final byte[] digest;
+    private final String digestAlgorithm;
+    private final boolean treeDigest;
+    private volatile RangeCache rangeCache;
+    private volatile FileMetrics metrics = defaultMetrics;
     private volatile boolean closed;
 
+    private static volatile FileMetrics defaultMetrics = FileMetrics.NONE;
+
     /**
      *
      * @param tempFile
@@ -57,11 +124,55 @@ public class RangedTextFile {
                              final byte[] digest,
                              final String encoding,
                              final int rangeIdWidth) throws IOException {
+        this(tempFile, new HeapRangeIndex(ranges), digest, DIGEST_SHA1, encoding, rangeIdWidth, null);
+    }
+
+    /**
+     *
+     * @param tempFile
+     * @param index
+     * @param digest
+     * @param digestAlgorithm the algorithm used to compute the full file digest and the range digests
+     * @param encoding
+     * @param rangeIdWidth
+     * @param compressedFile block-compressed reader for the tempFile, or null if the tempFile is not compressed
+     */
+    RangedTextFile(final File tempFile,
+                   final RangeIndex index,
+                   final byte[] digest,
+                   final String digestAlgorithm,
+                   final String encoding,
+                   final int rangeIdWidth,
+                   final BlockCompressedFile compressedFile) throws IOException {
+        this(tempFile, index, digest, digestAlgorithm, false, encoding, rangeIdWidth, compressedFile);
+    }
+
+    /**
+     *
+     * @param tempFile
+     * @param index
+     * @param digest
+     * @param digestAlgorithm the algorithm used to compute the full file digest and the range digests
+     * @param treeDigest true if the full file digest is in the {@link #DIGEST_FORMAT_TREE} format
+     * @param encoding
+     * @param rangeIdWidth
+     * @param compressedFile block-compressed reader for the tempFile, or null if the tempFile is not compressed
+     */
+    RangedTextFile(final File tempFile,
+                   final RangeIndex index,
+                   final byte[] digest,
+                   final String digestAlgorithm,
+                   final boolean treeDigest,
+                   final String encoding,
+                   final int rangeIdWidth,
+                   final BlockCompressedFile compressedFile) throws IOException {
 
         this.tempFile = tempFile;
-        this.serializableRanges = ranges;
-        this.ranges = Collections.synchronizedMap(Collections.unmodifiableMap(ranges));
+        this.compressedFile = compressedFile;
+        this.index = index;
         this.digest = digest;
+        this.digestAlgorithm = digestAlgorithm;
+        this.treeDigest = treeDigest;
         this.encoding = encoding;
         this.rangeIdWidth = rangeIdWidth;
     }
@@ -81,7 +192,7 @@ public class RangedTextFile {
      */
     public boolean hasRange(String rangeId) {
         checkClosed();
-        return ranges.containsKey(rangeId);
+        return index.contains(rangeId);
     }
 
     /**
@@ -101,51 +212,148 @@ public class RangedTextFile {
     public boolean isDigestEqual(RangedTextFile otherIndex) {
         checkClosed();
         return otherIndex != null && !otherIndex.isClosed()
+                && this.digestAlgorithm.equals(otherIndex.digestAlgorithm)
+                && this.treeDigest == otherIndex.treeDigest
                 && MessageDigest.isEqual(this.digest, otherIndex.digest);
     }
 
+    /**
+     * @return the name of the algorithm used for the file and range digests
+     */
+    public String getDigestAlgorithm() {
+        return this.digestAlgorithm;
+    }
+
+    /**
+     * @return true if the full file digest is in the {@link #DIGEST_FORMAT_TREE} format
+     */
+    public boolean isTreeDigest() {
+        return this.treeDigest;
+    }
+
     public int size() {
         checkClosed();
-        return ranges.size();
+        return index.size();
     }
 
-    public synchronized void close() {
+    /**
+     * @return true if the data file is stored block-compressed
+     */
+    public boolean isCompressed() {
+        return this.compressedFile != null;
+    }
+
+    public void close() {
+        close(true);
+    }
+
+    /**
+     * @param closeIndex false if the index has been handed over to another RangedTextFile
+     */
+    private synchronized void close(boolean closeIndex) {
         if (!this.closed) {
             this.closed = true;
             this.tempFile.delete();
+            if (closeIndex) {
+                this.index.close();
+            }
+            if (this.rangeCache != null) {
+                this.rangeCache.clear();
+                this.rangeCache = null;
+            }
+        }
+    }
+
+    /**
+     * Enables caching of decoded range text for {@link #getRange(String)} and {@link #getRanges(java.util.Collection)},
+     * replacing any existing cache. The data file is immutable, so cached ranges never need to be invalidated. The
+     * cache is dropped when the file is closed.
+     * @param maxBytes approximate heap budget for cached ranges. Zero or less disables the cache.
+     */
+    public synchronized void setRangeCacheSize(long maxBytes) {
+        checkClosed();
+        RangeCache old = this.rangeCache;
+        this.rangeCache = maxBytes > 0 ? new RangeCache(maxBytes) : null;
+        if (old != null) {
+            old.clear();
         }
     }
 
+    /**
+     * @return the decoded range cache, for inspecting its counters, or null if caching is not enabled
+     */
+    public RangeCache getRangeCache() {
+        return this.rangeCache;
+    }
+
+    /**
+     * Sets the metrics hook used by new files and builds which aren't given one explicitly
+     * @param metrics the hook, or null to discard metrics
+     */
+    public static void setDefaultMetrics(FileMetrics metrics) {
+        defaultMetrics = metrics != null ? metrics : FileMetrics.NONE;
+    }
+
+    public static FileMetrics getDefaultMetrics() {
+        return defaultMetrics;
+    }
+
+    /**
+     * Sets the metrics hook for lookups and saves on this file
+     * @param metrics the hook, or null to discard metrics
+     */
+    public void setMetrics(FileMetrics metrics) {
+        this.metrics = metrics != null ? metrics : FileMetrics.NONE;
+    }
+
+    public FileMetrics getMetrics() {
+        return this.metrics;
+    }
+
     public String getRange(String rangeId) {
         checkClosed();
 
+        FileMetrics metrics = this.metrics;
+        long start = System.nanoTime();
+        String text = null;
         try {
-            byte[] bytes = getRangeBytes(rangeId);
-            if (bytes != null) {
-                return new String(bytes, this.encoding);
+            RangeCache cache = this.rangeCache;
+            if (cache != null) {
+                text = cache.get(rangeId);
+                metrics.rangeCacheLookup(text != null);
+                if (text != null) {
+                    return text;
+                }
             }
-        } catch (IOException e) {
-            LOGGER.error("[getRange] Exception", e);
-        }
 
-        return null;
+            try {
+                byte[] bytes = getRangeBytes(rangeId);
+                if (bytes != null) {
+                    text = new String(bytes, this.encoding);
+                    if (cache != null) {
+                        cache.put(rangeId, text);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.error("[getRange] Exception", e);
+            }
+
+            return text;
+        } finally {
+            metrics.rangeLookup(System.nanoTime() - start, text != null);
+        }
     }
 
     byte[] getRangeBytes(final String rangeId) throws IOException {
         checkClosed();
 
         InputStream is = null;
+        TextRange textRange = index.get(rangeId);
 
-        if (hasRange(rangeId)) {
-            TextRange textRange = ranges.get(rangeId);
-
+        if (textRange != null) {
             try {
-                is = new FileInputStream(this.tempFile);
-                is.skip(textRange.getOffset());
-
-                byte[] buf = new byte[textRange.getLen()];
-                is.read(buf, 0, textRange.getLen());
-                return buf;
+                is = openDataStream(textRange.getOffset());
+                return readFully(is, textRange.getLength());
             } catch (IOException e) {
                 LOGGER.error("[getLines] Exception", e);
                 throw e;
@@ -157,13 +365,354 @@ public class RangedTextFile {
         }
     }
 
+    /**
+     * Opens a stream over the bytes of a single range, without materializing it in memory. This is the only way to
+     * read ranges larger than 2 GB.
+     * @param rangeId
+     * @return a stream of the range's bytes which the caller must close, or null if the range is not in the index
+     * @throws IOException
+     */
+    public InputStream openRange(final String rangeId) throws IOException {
+        checkClosed();
+        TextRange textRange = index.get(rangeId);
+        if (textRange != null) {
+            return new RangeInputStream(openDataStream(textRange.getOffset()), textRange.getLength());
+        }
+        return null;
+    }
+
+    /**
+     * @param rangeId
+     * @return the length of the range in bytes, or -1 if the range is not in the index
+     */
+    public long getRangeLength(final String rangeId) {
+        checkClosed();
+        TextRange textRange = index.get(rangeId);
+        return textRange != null ? textRange.getLength() : -1L;
+    }
+
+    /**
+     * Opens a stream over the uncompressed data, positioned at the specified offset. For a compressed file only the
+     * blocks which are actually read are inflated.
+     * @param offset
+     * @return
+     * @throws IOException
+     */
+    InputStream openDataStream(final long offset) throws IOException {
+        if (this.compressedFile != null) {
+            return this.compressedFile.openStream(offset);
+        } else {
+            InputStream is = new BufferedInputStream(new FileInputStream(this.tempFile));
+            try {
+                skipFully(is, offset);
+            } catch (IOException e) {
+                IOUtils.closeQuietly(is);
+                throw e;
+            }
+            return is;
+        }
+    }
+
+    /**
+     * Returns the text of each of the specified ranges in one call. The requested ranges are read in offset order
+     * over a single stream, and ranges that are adjacent or separated by less than {@link #COALESCE_GAP} bytes
+     * are merged into one larger sequential read. Ranges longer than {@link #MAX_MATERIALIZED_RANGE} bytes can't be
+     * held in a String, so they are left out of the result and must be read with {@link #openRange(String)}, while
+     * the rest of the batch is still read. Each distinct ID is recorded as one lookup in the {@link FileMetrics}, with
+     * an equal share of the time taken by the whole batch.
+     * @param rangeIds the range IDs to read. IDs which are not in the index are ignored.
+     * @return an unmodifiable map of rangeId to range text, sorted by rangeId, or null if the file could not be read
+     */
+    public Map<String, String> getRanges(final Collection<String> rangeIds) {
+        checkClosed();
+
+        FileMetrics metrics = this.metrics;
+        long start = System.nanoTime();
+        Set<String> requested = new HashSet<String>(rangeIds);
+        RangeCache cache = this.rangeCache;
+        Map<String, String> results = new TreeMap<String, String>(SORT_CMP);
+        List<TextRange> toRead = new ArrayList<TextRange>(rangeIds.size());
+        for (String rangeId : requested) {
+            TextRange textRange = index.get(rangeId);
+            if (textRange != null && textRange.getLength() > MAX_MATERIALIZED_RANGE) {
+                LOGGER.warn("[getRanges] skipping range {} of {} bytes, which must be read with openRange()",
+                        rangeId, textRange.getLength());
+            } else if (textRange != null) {
+                String cached = null;
+                if (cache != null) {
+                    cached = cache.get(rangeId);
+                    metrics.rangeCacheLookup(cached != null);
+                }
+                if (cached != null) {
+                    results.put(rangeId, cached);
+                } else {
+                    toRead.add(textRange);
+                }
+            }
+        }
+        Collections.sort(toRead, OFFSET_CMP);
+
+        InputStream stream = null;
+        long position = 0L;
+        boolean read = false;
+        try {
+            int spanFirst = 0;
+            while (spanFirst < toRead.size()) {
+                long spanStart = toRead.get(spanFirst).getOffset();
+                long spanEnd = spanStart + toRead.get(spanFirst).getLength();
+
+                int spanLast = spanFirst;
+                while (spanLast + 1 < toRead.size()) {
+                    TextRange next = toRead.get(spanLast + 1);
+                    long nextEnd = next.getOffset() + next.getLength();
+                    if (next.getOffset() - spanEnd > COALESCE_GAP || nextEnd - spanStart > MAX_COALESCED_READ) {
+                        break;
+                    }
+                    spanEnd = Math.max(spanEnd, nextEnd);
+                    spanLast++;
+                }
+
+                if (stream == null) {
+                    stream = openDataStream(spanStart);
+                    position = spanStart;
+                }
+                skipFully(stream, spanStart - position);
+                byte[] buf = readFully(stream, spanEnd - spanStart);
+                position = spanEnd;
+
+                for (int i = spanFirst; i <= spanLast; i++) {
+                    TextRange textRange = toRead.get(i);
+                    String text = new String(buf, (int) (textRange.getOffset() - spanStart),
+                            (int) textRange.getLength(), this.encoding);
+                    results.put(textRange.getRangeId(), text);
+                    if (cache != null) {
+                        cache.put(textRange.getRangeId(), text);
+                    }
+                }
+
+                spanFirst = spanLast + 1;
+            }
+            read = true;
+        } catch (IOException e) {
+            LOGGER.error("[getRanges] Exception", e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(stream);
+            if (!requested.isEmpty()) {
+                long elapsedPerRange = (System.nanoTime() - start) / requested.size();
+                for (String rangeId : requested) {
+                    metrics.rangeLookup(elapsedPerRange, read && results.containsKey(rangeId));
+                }
+            }
+        }
+
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Returns the ranges whose IDs fall between the specified bounds, in rangeId order. Both bounds are inclusive,
+     * and a null bound is treated as unbounded. Because the data file is sorted, the matching ranges are adjacent
+     * on disk, and the returned iterator streams them lazily from a single sequential read of the file. The
+     * iterator closes its file handle once it is exhausted, but should be closed explicitly if abandoned early.
+     * @param fromRangeId lowest rangeId to return (inclusive), or null to start from the first range
+     * @param toRangeId highest rangeId to return (inclusive), or null to continue through the last range
+     * @return an iterator of rangeId to range text entries
+     */
+    public RangeIterator getRanges(final String fromRangeId, final String toRangeId) {
+        checkClosed();
+        int start = fromRangeId == null ? 0 : index.lowerIndex(fromRangeId);
+        int end = toRangeId == null ? index.size() : index.upperIndex(toRangeId);
+        return new RangeIterator(start, Math.max(start, end));
+    }
+
+    /**
+     * Returns the ranges whose IDs begin with the specified prefix, in rangeId order, streamed lazily from a single
+     * sequential read of the file.
+     * @param prefix the rangeId prefix. An empty or null prefix matches every range.
+     * @return an iterator of rangeId to range text entries
+     * @see #getRanges(String, String)
+     */
+    public RangeIterator getRangesWithPrefix(final String prefix) {
+        checkClosed();
+        if (prefix == null || prefix.length() == 0) {
+            return getRanges(null, null);
+        }
+
+        int start = index.lowerIndex(prefix);
+
+        // all ids sharing the prefix are contiguous from start, so find the first one that doesn't
+        int low = start, high = index.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (index.getRangeId(mid).startsWith(prefix)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return new RangeIterator(start, low);
+    }
+
+    /**
+     * Lazily reads a contiguous slice of the sorted ranges using a single buffered stream over the data file.
+     * Ranges are read in rangeId order, which for a sorted file is also offset order, so the stream only ever
+     * skips forward. If a range is found behind the current position the stream is reopened. Each range read is
+     * recorded as one lookup in the {@link FileMetrics}. The range cache is neither consulted nor filled.
+     */
+    public class RangeIterator implements Iterator<Map.Entry<String, String>>, Closeable {
+        private final int end;
+        private int current;
+        private InputStream stream;
+        private long position;
+
+        RangeIterator(final int start, final int end) {
+            this.current = start;
+            this.end = end;
+        }
+
+        public boolean hasNext() {
+            if (current < end) {
+                return true;
+            } else {
+                close();
+                return false;
+            }
+        }
+
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            checkClosed();
+
+            TextRange textRange = index.get(current++);
+            FileMetrics metrics = RangedTextFile.this.metrics;
+            long start = System.nanoTime();
+            boolean found = false;
+            try {
+                if (stream == null || position > textRange.getOffset()) {
+                    IOUtils.closeQuietly(stream);
+                    stream = openDataStream(textRange.getOffset());
+                    position = textRange.getOffset();
+                }
+
+                skipFully(stream, textRange.getOffset() - position);
+                byte[] bytes = readFully(stream, textRange.getLength());
+                position = textRange.getOffset() + textRange.getLength();
+
+                RangeEntry entry = new RangeEntry(textRange.getRangeId(), new String(bytes, encoding));
+                found = true;
+                return entry;
+            } catch (IOException e) {
+                close();
+                throw new IllegalStateException("Failed to read range " + textRange.getRangeId(), e);
+            } finally {
+                metrics.rangeLookup(System.nanoTime() - start, found);
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+
+        public void close() {
+            IOUtils.closeQuietly(stream);
+            stream = null;
+            current = end;
+        }
+    }
+
+    static final class RangeEntry implements Map.Entry<String, String> {
+        private final String rangeId;
+        private final String text;
+
+        RangeEntry(final String rangeId, final String text) {
+            this.rangeId = rangeId;
+            this.text = text;
+        }
+
+        public String getKey() {
+            return rangeId;
+        }
+
+        public String getValue() {
+            return text;
+        }
+
+        public String setValue(String value) {
+            throw new UnsupportedOperationException("setValue");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            return rangeId.equals(other.getKey())
+                    && (text == null ? other.getValue() == null : text.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return rangeId.hashCode() ^ (text == null ? 0 : text.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return rangeId + "=" + text;
+        }
+    }
+
+    /**
+     * Computes the digest of every range in one sequential pass over the data file. This only has an effect on a
+     * heap index, whose TextRange instances are retained.
+     * @param digester
+     * @throws IOException
+     */
     synchronized void updateRangeDigests(MessageDigest digester) throws IOException {
+        updateRangeDigests(digester, null);
+    }
+
+    synchronized void updateRangeDigests(MessageDigest digester, BuildMonitor monitor) throws IOException {
         checkClosed();
-        for (TextRange textRange : ranges.values()) {
+        if (monitor == null) monitor = new BuildMonitor();
+
+        TextRange[] byOffset = new TextRange[index.size()];
+        for (int i = 0; i < byOffset.length; i++) {
+            byOffset[i] = index.get(i);
+        }
+        Arrays.sort(byOffset, OFFSET_CMP);
+
+        InputStream stream = null;
+        try {
+            stream = openDataStream(0L);
+            long position = 0L;
+            for (TextRange textRange : byOffset) {
+                skipFully(stream, textRange.getOffset() - position);
+                digester.reset();
+                textRange.setRangeDigest(digest(stream, textRange.getLength(), digester));
+                position = textRange.getOffset() + textRange.getLength();
+                monitor.addRangeDigested();
+                monitor.checkCancelled();
+            }
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Computes the digest of a single range with an arbitrary algorithm, for comparison against a file which uses a
+     * different algorithm than this one.
+     */
+    byte[] computeRangeDigest(TextRange textRange, MessageDigest digester) throws IOException {
+        InputStream stream = null;
+        try {
+            stream = openDataStream(textRange.getOffset());
             digester.reset();
-            byte[] bytes = getRangeBytes(textRange.getRangeId());
-            byte[] digest = digester.digest(bytes);
-            textRange.setRangeDigest(digest);
+            return digest(stream, textRange.getLength(), digester);
+        } finally {
+            IOUtils.closeQuietly(stream);
         }
     }
 
@@ -180,23 +729,29 @@ public class RangedTextFile {
         ValueFactory vf = node.getSession().getValueFactory();
 
         long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         try {
 
             LOGGER.info("[saveToNode] {}: start", node.getPath());
 
-            indexFile = serializeObjectToTempFile(serializableRanges, this.tempFile.getParentFile());
+            indexFile = writeIndexToTempFile(index, this.tempFile.getParentFile());
             node.setProperty(PN_INDEX, vf.createValue(vf.createBinary(new FileInputStream(indexFile))));
 
             node.setProperty(PN_BINARY, vf.createValue(vf.createBinary(new FileInputStream(this.tempFile))));
             node.setProperty(PN_DIGEST, vf.createValue(vf.createBinary(new ByteArrayInputStream(digest))));
+            node.setProperty(PN_DIGEST_ALGORITHM, vf.createValue(digestAlgorithm));
+            node.setProperty(PN_DIGEST_FORMAT, treeDigest ? vf.createValue(DIGEST_FORMAT_TREE) : null);
 
             node.setProperty(PN_ENCODING, vf.createValue(encoding));
             node.setProperty(PN_RANGE_ID_WIDTH, vf.createValue(rangeIdWidth));
+            node.setProperty(PN_COMPRESSION, isCompressed() ? vf.createValue(COMPRESSION_BLOCK_DEFLATE) : null);
             node.getSession().save();
 
+            this.metrics.saved(this.tempFile.length() + indexFile.length(), System.nanoTime() - startNanos);
+
             long end = System.currentTimeMillis();
             LOGGER.info("[saveToNode] {}: Saved {} ranges to node in {} seconds .",
-                    new Object[]{ node.getPath(), ranges.size(),
+                    new Object[]{ node.getPath(), index.size(),
                             String.format("%.2f", (end - start) / 1000.0D)});
 
         } finally {
@@ -206,6 +761,16 @@ public class RangedTextFile {
         }
     }
 
+    /**
+     * Loads a RangedTextFile persisted by {@link #saveToNode(javax.jcr.Node)}. The index is copied to a temp file and
+     * memory-mapped rather than deserialized, so the heap it takes doesn't grow with the number of ranges. The copy
+     * itself still takes time and disk I/O in proportion to the size of the index. Indexes persisted in the older
+     * serialized form are still read onto the heap.
+     * @param node
+     * @param tempDir
+     * @return the RangedTextFile, or null if the node doesn't have the required properties or can't be read
+     * @throws RepositoryException
+     */
     @SuppressWarnings("unchecked")
     public static RangedTextFile loadFromNode(Node node, File tempDir) throws RepositoryException {
         if (node.hasProperty(PN_BINARY) && node.hasProperty(PN_DIGEST)
@@ -218,14 +783,22 @@ public class RangedTextFile {
 
             String encoding = node.getProperty(PN_ENCODING).getString();
             int rangeIdWidth = (int) node.getProperty(PN_RANGE_ID_WIDTH).getLong();
+            String compression = node.hasProperty(PN_COMPRESSION) ? node.getProperty(PN_COMPRESSION).getString() : null;
+            String digestAlgorithm = node.hasProperty(PN_DIGEST_ALGORITHM)
+                    ? node.getProperty(PN_DIGEST_ALGORITHM).getString() : DIGEST_SHA1;
+            String digestFormat = node.hasProperty(PN_DIGEST_FORMAT)
+                    ? node.getProperty(PN_DIGEST_FORMAT).getString() : null;
 
             File tempFile = null;
+            File indexFile = null;
+            RangeIndex rangeIndex = null;
 
             InputStream binaryStream = null;
             InputStream indexStream = null;
             InputStream digestStream = null;
 
             long start = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
 
             try {
                 LOGGER.info("[loadFromNode] {}: start", node.getPath());
@@ -234,9 +807,20 @@ public class RangedTextFile {
                 tempFile = copyStreamToTempFile(binaryStream, tempDir);
 
                 indexStream = index.getStream();
-
-                HashMap<String, TextRange> tuples =
-                        (HashMap<String, TextRange>) (new ObjectInputStream(indexStream)).readObject();
+                indexFile = copyStreamToTempFile(indexStream, tempDir);
+                long loadedBytes = tempFile.length() + indexFile.length();
+
+                if (MappedRangeIndex.isColumnar(indexFile)) {
+                    rangeIndex = MappedRangeIndex.open(indexFile);
+                } else {
+                    ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                    try {
+                        rangeIndex = new HeapRangeIndex((HashMap<String, TextRange>) ois.readObject());
+                    } finally {
+                        IOUtils.closeQuietly(ois);
+                        indexFile.delete();
+                    }
+                }
 
                 digestStream = digest.getStream();
                 byte[] _digest = new byte[(int) digest.getSize()];
@@ -245,15 +829,34 @@ public class RangedTextFile {
                 long end = System.currentTimeMillis();
 
                 LOGGER.info("[loadFromNode] {}: Loaded {} ranges from node in {} seconds.",
-                        new Object[]{ node.getPath(), tuples.size(),
+                        new Object[]{ node.getPath(), rangeIndex.size(),
                                 String.format("%.2f", (end - start) / 1000.0D)});
 
-                return new RangedTextFile(tempFile, tuples, _digest, encoding, rangeIdWidth);
+                BlockCompressedFile compressedFile = null;
+                if (COMPRESSION_BLOCK_DEFLATE.equals(compression)) {
+                    compressedFile = BlockCompressedFile.open(tempFile);
+                } else if (compression != null) {
+                    throw new IOException("Unsupported compression: " + compression);
+                }
+
+                if (digestFormat != null && !DIGEST_FORMAT_TREE.equals(digestFormat)) {
+                    throw new IOException("Unsupported digest format: " + digestFormat);
+                }
+
+                RangedTextFile textFile = new RangedTextFile(tempFile, rangeIndex, _digest, digestAlgorithm,
+                        digestFormat != null, encoding, rangeIdWidth, compressedFile);
+                textFile.metrics.loaded(loadedBytes, System.nanoTime() - startNanos);
+                return textFile;
             } catch (Exception e) {
                 LOGGER.error("[loadFromNode] Exception", e);
                 if (tempFile != null && tempFile.exists()) {
                     tempFile.delete();
                 }
+                if (rangeIndex != null) {
+                    rangeIndex.close();
+                } else if (indexFile != null && indexFile.exists()) {
+                    indexFile.delete();
+                }
             } finally {
                 IOUtils.closeQuietly(binaryStream);
                 IOUtils.closeQuietly(indexStream);
@@ -277,75 +880,428 @@ public class RangedTextFile {
                                                      final int rangeIdWidth,
                                                      final boolean sort,
                                                      final File tempDir) throws IOException {
+        return createFromStream(stream, encoding, rangeIdWidth, sort, tempDir, 0, DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     *
+     * @param stream
+     * @param encoding
+     * @param rangeIdWidth
+     * @param sort
+     * @param tempDir
+     * @param compressedBlockSize if greater than zero, the data file is stored as independently deflated blocks of
+     *                            this many uncompressed bytes
+     * @return
+     * @throws java.io.IOException
+     */
+    public static RangedTextFile createFromStream(final InputStream stream,
+                                                     final String encoding,
+                                                     final int rangeIdWidth,
+                                                     final boolean sort,
+                                                     final File tempDir,
+                                                     final int compressedBlockSize) throws IOException {
+        return createFromStream(stream, encoding, rangeIdWidth, sort, tempDir, compressedBlockSize,
+                DEFAULT_DIGEST_ALGORITHM);
+    }
+
+    /**
+     *
+     * @param stream
+     * @param encoding
+     * @param rangeIdWidth
+     * @param sort
+     * @param tempDir
+     * @param compressedBlockSize if greater than zero, the data file is stored as independently deflated blocks of
+     *                            this many uncompressed bytes. {@link #DEFAULT_COMPRESSED_BLOCK_SIZE} is a reasonable
+     *                            trade between compression ratio and the cost of reading a single range.
+     * @param digestAlgorithm {@link #DIGEST_MURMUR3_128} or the name of any {@link MessageDigest} algorithm
+     * @return
+     * @throws java.io.IOException
+     */
+    public static RangedTextFile createFromStream(final InputStream stream,
+                                                     final String encoding,
+                                                     final int rangeIdWidth,
+                                                     final boolean sort,
+                                                     final File tempDir,
+                                                     final int compressedBlockSize,
+                                                     final String digestAlgorithm) throws IOException {
+        return createFromStream(stream, encoding, rangeIdWidth, sort, tempDir, compressedBlockSize, digestAlgorithm,
+                null);
+    }
+
+    /**
+     * Builds a RangedTextFile, reporting progress to the monitor. If the monitor is cancelled or the current thread is
+     * interrupted, the build stops at the next check, deletes its temp files, and throws an
+     * {@link InterruptedIOException}.
+     * @param stream
+     * @param encoding
+     * @param rangeIdWidth
+     * @param sort
+     * @param tempDir
+     * @param compressedBlockSize if greater than zero, the data file is stored as independently deflated blocks of
+     *                            this many uncompressed bytes
+     * @param digestAlgorithm {@link #DIGEST_MURMUR3_128} or the name of any {@link MessageDigest} algorithm
+     * @param monitor build monitor (may be null)
+     * @return
+     * @throws java.io.IOException
+     */
+    public static RangedTextFile createFromStream(final InputStream stream,
+                                                     final String encoding,
+                                                     final int rangeIdWidth,
+                                                     final boolean sort,
+                                                     final File tempDir,
+                                                     final int compressedBlockSize,
+                                                     final String digestAlgorithm,
+                                                     BuildMonitor monitor) throws IOException {
+        return build(stream, encoding, rangeIdWidth, Records.newlineDelimited(), Records.fixedWidth(rangeIdWidth),
+                sort, true, tempDir, compressedBlockSize, digestAlgorithm, 1, monitor);
+    }
+
+    /**
+     * Builds a RangedTextFile from framed records rather than newline-terminated lines with a fixed-width key. The
+     * stream is never decoded as a whole, so records may contain arbitrary bytes, and only the key bytes must be in
+     * the specified encoding. When sorting, records are ordered by key, then by payload bytes.
+     *
+     * {@link #getRange(String)} returns the ranges as decoded text including any framing bytes, so binary records
+     * are better read with {@link #openRange(String)}.
+     * @param stream
+     * @param encoding encoding of the keys, and of the range text returned by {@link #getRange(String)}
+     * @param framer splits the stream into records, e.g. {@link Records#lengthPrefixed()}
+     * @param keyExtractor extracts the rangeId from each record, e.g. {@link Records#field(byte, int)}
+     * @param sort
+     * @param tempDir
+     * @param compressedBlockSize if greater than zero, the data file is stored as independently deflated blocks of
+     *                            this many uncompressed bytes
+     * @param digestAlgorithm {@link #DIGEST_MURMUR3_128} or the name of any {@link MessageDigest} algorithm
+     * @param parallelism number of threads to index the sorted file with. If greater than one, the full file digest
+     *                    is in the {@link #DIGEST_FORMAT_TREE} format.
+     * @param monitor build monitor (may be null)
+     * @return
+     * @throws IOException
+     */
+    public static RangedTextFile createFromStream(final InputStream stream,
+                                                     final String encoding,
+                                                     final RecordFramer framer,
+                                                     final KeyExtractor keyExtractor,
+                                                     final boolean sort,
+                                                     final File tempDir,
+                                                     final int compressedBlockSize,
+                                                     final String digestAlgorithm,
+                                                     final int parallelism,
+                                                     final BuildMonitor monitor) throws IOException {
+        return build(stream, encoding, 0, framer, keyExtractor, sort, false, tempDir, compressedBlockSize,
+                digestAlgorithm, parallelism, monitor);
+    }
+
+    /**
+     * @param sortLines sort with {@link ExternalSort} by whole line, as files have always been sorted, rather than by
+     *                  record key
+     */
+    private static RangedTextFile build(final InputStream stream,
+                                        final String encoding,
+                                        final int rangeIdWidth,
+                                        final RecordFramer framer,
+                                        final KeyExtractor keyExtractor,
+                                        final boolean sort,
+                                        final boolean sortLines,
+                                        final File tempDir,
+                                        final int compressedBlockSize,
+                                        final String digestAlgorithm,
+                                        final int parallelism,
+                                        BuildMonitor monitor) throws IOException {
+        if (monitor == null) monitor = new BuildMonitor();
         File temp = null;
         try {
-            temp = copyStreamToTempFile(stream, tempDir);
+            monitor.checkCancelled();
+            monitor.setPhase(BuildMonitor.Phase.COPYING);
+            temp = copyStreamToTempFile(stream, tempDir, monitor);
+            monitor.getMetrics().bytesWritten(temp.length());
             Charset charset = Charset.forName(encoding);
 
-            if (sort) sort(temp, charset, tempDir);
+            if (sort) {
+                if (sortLines) {
+                    sort(temp, charset, tempDir, monitor);
+                } else {
+                    new RecordSort(framer, keyExtractor, charset, tempDir, monitor).sort(temp);
+                }
+            }
 
-            return createFromSortedFile(temp, charset, rangeIdWidth);
+            RangedTextFile textFile = createFromSortedFile(temp, charset, rangeIdWidth, framer, keyExtractor,
+                    digestAlgorithm, parallelism, monitor);
+            if (compressedBlockSize > 0) {
+                try {
+                    monitor.checkCancelled();
+                    monitor.setPhase(BuildMonitor.Phase.COMPRESSING);
+                    textFile = compress(textFile, compressedBlockSize, tempDir);
+                    monitor.getMetrics().bytesWritten(textFile.tempFile.length());
+                } catch (IOException e) {
+                    textFile.close();
+                    throw e;
+                }
+            }
+            monitor.setPhase(BuildMonitor.Phase.DONE);
+            return textFile;
         } catch (IOException e) {
             if (temp != null) {
                 temp.delete();
             }
+            monitor.setPhase(e instanceof InterruptedIOException && monitor.isCancelled() ?
+                    BuildMonitor.Phase.CANCELLED : BuildMonitor.Phase.FAILED);
+            throw e;
+        } catch (RuntimeException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+            monitor.setPhase(BuildMonitor.Phase.FAILED);
             throw e;
         } finally {
             IOUtils.closeQuietly(stream);
         }
     }
 
+    /**
+     * Builds a RangedTextFile on the executor, returning immediately. Progress is reported to the monitor, which may
+     * be polled from any thread. Cancelling the returned future cancels the monitor, so that a running build stops
+     * at its next check and deletes its temp files. The stream is closed when the build completes, fails or is
+     * cancelled.
+     * @param stream
+     * @param encoding
+     * @param rangeIdWidth
+     * @param sort
+     * @param tempDir
+     * @param compressedBlockSize if greater than zero, the data file is stored as independently deflated blocks of
+     *                            this many uncompressed bytes
+     * @param digestAlgorithm {@link #DIGEST_MURMUR3_128} or the name of any {@link MessageDigest} algorithm
+     * @param monitor build monitor (may be null)
+     * @param executor executor to run the build on. If null, the build runs on a new daemon thread.
+     * @return a future for the new RangedTextFile
+     */
+    public static Future<RangedTextFile> createFromStreamAsync(final InputStream stream,
+                                                                 final String encoding,
+                                                                 final int rangeIdWidth,
+                                                                 final boolean sort,
+                                                                 final File tempDir,
+                                                                 final int compressedBlockSize,
+                                                                 final String digestAlgorithm,
+                                                                 final BuildMonitor monitor,
+                                                                 final Executor executor) {
+        final BuildMonitor buildMonitor = monitor != null ? monitor : new BuildMonitor();
+        BuildFuture future = new BuildFuture(new Callable<RangedTextFile>() {
+            public RangedTextFile call() throws Exception {
+                return createFromStream(stream, encoding, rangeIdWidth, sort, tempDir, compressedBlockSize,
+                        digestAlgorithm, buildMonitor);
+            }
+        }, stream, buildMonitor);
+
+        if (executor != null) {
+            executor.execute(future);
+        } else {
+            Thread thread = new Thread(future, RangedTextFile.class.getSimpleName() + "-build");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return future;
+    }
+
+    /**
+     * Future for an asynchronous build, which forwards cancellation to the build monitor
+     */
+    static final class BuildFuture extends FutureTask<RangedTextFile> {
+        private final InputStream stream;
+        private final BuildMonitor monitor;
+
+        BuildFuture(final Callable<RangedTextFile> callable, final InputStream stream, final BuildMonitor monitor) {
+            super(callable);
+            this.stream = stream;
+            this.monitor = monitor;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            monitor.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        /**
+         * A build which finishes after the future was cancelled can't be handed to anyone, so its files are deleted
+         * here instead of being left behind
+         */
+        @Override
+        protected void set(RangedTextFile result) {
+            super.set(result);
+            if (isCancelled() && result != null) {
+                result.close();
+                monitor.setPhase(BuildMonitor.Phase.CANCELLED);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                if (monitor.getPhase() == BuildMonitor.Phase.PENDING) {
+                    // never started, so nothing else will close the stream
+                    IOUtils.closeQuietly(stream);
+                    monitor.setPhase(BuildMonitor.Phase.CANCELLED);
+                }
+            }
+        }
+    }
+
     public static RangedTextFile createFromSortedFile(final File sortedFile,
                                                          final Charset charset,
                                                          final int rangeIdWidth) throws IOException {
+        return createFromSortedFile(sortedFile, charset, rangeIdWidth, DEFAULT_DIGEST_ALGORITHM);
+    }
 
-        CountingInputStream countingInputStream = null;
+    /**
+     *
+     * @param sortedFile
+     * @param charset
+     * @param rangeIdWidth
+     * @param digestAlgorithm {@link #DIGEST_MURMUR3_128} or the name of any {@link MessageDigest} algorithm
+     * @return
+     * @throws IOException
+     */
+    public static RangedTextFile createFromSortedFile(final File sortedFile,
+                                                         final Charset charset,
+                                                         final int rangeIdWidth,
+                                                         final String digestAlgorithm) throws IOException {
+        BuildMonitor monitor = new BuildMonitor();
+        RangedTextFile textFile = createFromSortedFile(sortedFile, charset, rangeIdWidth, digestAlgorithm, monitor);
+        monitor.setPhase(BuildMonitor.Phase.DONE);
+        return textFile;
+    }
+
+    static RangedTextFile createFromSortedFile(final File sortedFile,
+                                               final Charset charset,
+                                               final int rangeIdWidth,
+                                               final String digestAlgorithm,
+                                               final BuildMonitor monitor) throws IOException {
+        return createFromSortedFile(sortedFile, charset, rangeIdWidth, Records.newlineDelimited(),
+                Records.fixedWidth(rangeIdWidth), digestAlgorithm, 1, monitor);
+    }
+
+    /**
+     * Indexes a file of framed records which is already grouped by key
+     * @param sortedFile
+     * @param charset encoding of the keys
+     * @param framer splits the file into records
+     * @param keyExtractor extracts the rangeId from each record
+     * @param digestAlgorithm {@link #DIGEST_MURMUR3_128} or the name of any {@link MessageDigest} algorithm
+     * @return
+     * @throws IOException
+     */
+    public static RangedTextFile createFromSortedFile(final File sortedFile,
+                                                         final Charset charset,
+                                                         final RecordFramer framer,
+                                                         final KeyExtractor keyExtractor,
+                                                         final String digestAlgorithm) throws IOException {
+        return createFromSortedFile(sortedFile, charset, framer, keyExtractor, digestAlgorithm, 1);
+    }
+
+    /**
+     * Indexes a file of framed records which is already grouped by key, splitting it into chunks which are scanned
+     * on separate threads. Ranges which span chunks are stitched together, so the ranges and range digests are the
+     * same as for a sequential scan, but the full file digest is in the {@link #DIGEST_FORMAT_TREE} format.
+     * @param sortedFile
+     * @param charset encoding of the keys
+     * @param framer splits the file into records
+     * @param keyExtractor extracts the rangeId from each record
+     * @param digestAlgorithm {@link #DIGEST_MURMUR3_128} or the name of any {@link MessageDigest} algorithm
+     * @param parallelism number of threads. One scans the file sequentially on the calling thread, with a stream
+     *                    digest.
+     * @return
+     * @throws IOException
+     */
+    public static RangedTextFile createFromSortedFile(final File sortedFile,
+                                                         final Charset charset,
+                                                         final RecordFramer framer,
+                                                         final KeyExtractor keyExtractor,
+                                                         final String digestAlgorithm,
+                                                         final int parallelism) throws IOException {
+        BuildMonitor monitor = new BuildMonitor();
+        RangedTextFile textFile = createFromSortedFile(sortedFile, charset, 0, framer, keyExtractor, digestAlgorithm,
+                parallelism, monitor);
+        monitor.setPhase(BuildMonitor.Phase.DONE);
+        return textFile;
+    }
+
+    /**
+     * @param rangeIdWidth the fixed key width, persisted for reference only, or 0 if keys are not fixed-width
+     */
+    static RangedTextFile createFromSortedFile(final File sortedFile,
+                                               final Charset charset,
+                                               final int rangeIdWidth,
+                                               final RecordFramer framer,
+                                               final KeyExtractor keyExtractor,
+                                               final String digestAlgorithm,
+                                               final int parallelism,
+                                               BuildMonitor monitor) throws IOException {
+        if (monitor == null) monitor = new BuildMonitor();
+        monitor.setPhase(BuildMonitor.Phase.INDEXING);
+
+        if (parallelism > 1) {
+            ParallelIndexer indexer = new ParallelIndexer(sortedFile, charset, framer, keyExtractor, digestAlgorithm,
+                    parallelism, ParallelIndexer.TREE_CHUNK_SIZE, monitor);
+            indexer.index();
+            return new RangedTextFile(sortedFile, new HeapRangeIndex(indexer.getRanges()), indexer.getDigest(),
+                    digestAlgorithm, true, charset.name(), rangeIdWidth, null);
+        }
+
+        InputStream stream = null;
         HashMap<String, TextRange> tuples = new HashMap<String, TextRange>(RANGES_MAP_INIT_SIZE);
 
         try {
-            MessageDigest fullStreamDigester = getDigester();
+            MessageDigest fullStreamDigester = getDigester(digestAlgorithm);
 
-            countingInputStream = new CountingInputStream(
-                    new DigestInputStream(
-                            new FileInputStream(sortedFile), fullStreamDigester));
+            stream = new BufferedInputStream(new DigestInputStream(new FileInputStream(sortedFile), fullStreamDigester),
+                    DIGEST_CHUNK_SIZE);
 
-            CharsetDecoder decoder = charset.newDecoder();
-            CharsetEncoder encoder = charset.newEncoder();
-            int bytesToRead = Math.round(encoder.maxBytesPerChar() * rangeIdWidth);
             long start = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
 
             long pos = 0L;
             long rangeStart = pos;
-            int nLines = 1;
-            String lastRangeId = readWidth(countingInputStream, decoder, bytesToRead, rangeIdWidth);
+            long nRecords = 0L;
+            String lastRangeId = null;
+            byte[] record;
 
-            while (readUntilNewLine(countingInputStream)) {
-                nLines++;
-                pos = countingInputStream.getByteCount();
+            while ((record = framer.next(stream)) != null) {
+                nRecords++;
+                if ((nRecords & 0x3ffL) == 0L) monitor.checkCancelled();
 
-                String rangeId = readWidth(countingInputStream, decoder, bytesToRead, rangeIdWidth);
+                String rangeId = keyExtractor.extractKey(record, framer.payloadOffset(record),
+                        framer.payloadLength(record), charset);
 
                 if (!rangeId.equals(lastRangeId)) {
-
-                    TextRange textRange = new TextRange(lastRangeId, rangeStart, (int)(pos - rangeStart));
-                    tuples.put(textRange.getRangeId(), textRange);
-
-                    LOGGER.debug("[createFromSortedFile] [{}/{}] found range {}", new Object[]{rangeStart, pos, textRange});
-
-                    if (rangeId.indexOf('\n') >= 0) {
-                        LOGGER.warn("[createFromSortedFile] Found newline within specified rangeIdWidth on line {}", nLines);
+                    if (lastRangeId != null) {
+                        addRange(tuples, new TextRange(lastRangeId, rangeStart, pos - rangeStart), nRecords);
+                        monitor.addRangeIndexed();
                     }
-
                     lastRangeId = rangeId;
                     rangeStart = pos;
                 }
+                pos += record.length;
+            }
+            if (lastRangeId != null) {
+                addRange(tuples, new TextRange(lastRangeId, rangeStart, pos - rangeStart), nRecords);
+                monitor.addRangeIndexed();
             }
 
             byte[] digest = fullStreamDigester.digest();
+            monitor.getMetrics().indexBuilt(tuples.size(), pos, System.nanoTime() - startNanos);
 
-            RangedTextFile bstf = new RangedTextFile(sortedFile, tuples, digest, charset.name(), rangeIdWidth);
+            RangedTextFile bstf = new RangedTextFile(sortedFile, new HeapRangeIndex(tuples), digest, digestAlgorithm,
+                    charset.name(), rangeIdWidth, null);
             LOGGER.info("[createFromSortedFile] updating range digests");
-            bstf.updateRangeDigests(fullStreamDigester);
+            monitor.setPhase(BuildMonitor.Phase.DIGESTING);
+            try {
+                bstf.updateRangeDigests(fullStreamDigester, monitor);
+            } catch (IOException e) {
+                bstf.close();
+                throw e;
+            }
 
             long end = System.currentTimeMillis();
             LOGGER.info("[createFromSortedFile] Indexed {} ranges in {} seconds.", tuples.size(),
@@ -353,7 +1309,53 @@ public class RangedTextFile {
 
             return bstf;
         } finally {
-            IOUtils.closeQuietly(countingInputStream);
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    private static void addRange(final HashMap<String, TextRange> tuples, final TextRange textRange,
+                                 final long nRecords) {
+        LOGGER.debug("[createFromSortedFile] found range {}", textRange);
+        if (tuples.put(textRange.getRangeId(), textRange) != null) {
+            LOGGER.warn("[createFromSortedFile] rangeId {} appears again before record {}. The file is not sorted, "
+                    + "and only the last occurrence is indexed.", textRange.getRangeId(), nRecords);
+        }
+    }
+
+    /**
+     * Block-compresses the data file of an uncompressed RangedTextFile, returning a new RangedTextFile which shares
+     * its index and digests. The uncompressed file is closed and its data file deleted.
+     * @param textFile
+     * @param blockSize
+     * @param tempDir
+     * @return
+     * @throws IOException
+     */
+    static RangedTextFile compress(final RangedTextFile textFile,
+                                   final int blockSize,
+                                   final File tempDir) throws IOException {
+        textFile.checkClosed();
+        if (textFile.isCompressed()) {
+            return textFile;
+        }
+
+        long start = System.currentTimeMillis();
+        File compressed = File.createTempFile(RangedTextFile.class.getSimpleName(), ".dat", tempDir);
+        try {
+            BlockCompressedFile compressedFile = BlockCompressedFile.compress(textFile.tempFile, compressed, blockSize);
+            RangedTextFile result = new RangedTextFile(compressed, textFile.index, textFile.digest,
+                    textFile.digestAlgorithm, textFile.treeDigest, textFile.encoding, textFile.rangeIdWidth,
+                    compressedFile);
+            textFile.close(false);
+
+            long end = System.currentTimeMillis();
+            LOGGER.info("[compress] Compressed {} bytes into {} blocks totalling {} bytes in {} seconds.",
+                    new Object[]{ compressedFile.getLength(), compressedFile.getBlockCount(), compressed.length(),
+                            String.format("%.2f", (end - start) / 1000.0D)});
+            return result;
+        } catch (IOException e) {
+            compressed.delete();
+            throw e;
         }
     }
 
@@ -364,6 +1366,8 @@ public class RangedTextFile {
      * 1. null indicates that an argument was null or invalid
      * 2. Empty map indicates that the files are identical
      * 3. Populated map contains differences between files keyed on rangeId
+     * If the two files use different digest algorithms, each base range which is also in the current file is
+     * digested again from the base data file using the current file's algorithm.
      * @param base
      * @return
      */
@@ -372,29 +1376,56 @@ public class RangedTextFile {
             return null;
         }
 
-        Map<String, RangeDiffInfoType> diffInfos = new HashMap<String, RangeDiffInfoType>(RANGES_MAP_INIT_SIZE);
+        MessageDigest rehasher = null;
+        if (!current.digestAlgorithm.equals(base.digestAlgorithm)) {
+            LOGGER.info("[diffRanges] digest algorithms differ ({} != {}), rehashing base ranges",
+                    base.digestAlgorithm, current.digestAlgorithm);
+            rehasher = getDigester(current.digestAlgorithm);
+        }
+
+        // both indexes are sorted by rangeId, so walk them together
+        Map<String, RangeDiffInfoType> diffInfos = new TreeMap<String, RangeDiffInfoType>(SORT_CMP);
         if (!current.isDigestEqual(base)) {
-            for (TextRange range : base.ranges.values()) {
-                String rangeId = range.getRangeId();
-                LOGGER.debug("[diffRanges] base rangeId: {}", rangeId);
-                if (!diffInfos.containsKey(rangeId)) {
-                    if (current.ranges.containsKey(rangeId)) {
-                        if (!MessageDigest.isEqual(current.ranges.get(rangeId).getRangeDigest(), range.getRangeDigest())) {
-                            diffInfos.put(rangeId, RangeDiffInfoType.CHANGED);
-                        }
-                    } else {
-                        diffInfos.put(rangeId, RangeDiffInfoType.REMOVED);
-                    }
+            RangeIndex baseIndex = base.index;
+            RangeIndex currentIndex = current.index;
+            int b = 0, c = 0;
+            while (b < baseIndex.size() || c < currentIndex.size()) {
+                int cmp;
+                if (b >= baseIndex.size()) {
+                    cmp = 1;
+                } else if (c >= currentIndex.size()) {
+                    cmp = -1;
+                } else {
+                    cmp = SORT_CMP.compare(baseIndex.getRangeId(b), currentIndex.getRangeId(c));
                 }
-            }
 
-            for (String key : current.ranges.keySet()) {
-                if (!base.hasRange(key)) {
-                    diffInfos.put(key, RangeDiffInfoType.ADDED);
+                if (cmp < 0) {
+                    String rangeId = baseIndex.getRangeId(b++);
+                    LOGGER.debug("[diffRanges] base rangeId: {}", rangeId);
+                    diffInfos.put(rangeId, RangeDiffInfoType.REMOVED);
+                } else if (cmp > 0) {
+                    diffInfos.put(currentIndex.getRangeId(c++), RangeDiffInfoType.ADDED);
+                } else {
+                    TextRange range = baseIndex.get(b++);
+                    TextRange currentRange = currentIndex.get(c++);
+                    String rangeId = range.getRangeId();
+                    LOGGER.debug("[diffRanges] base rangeId: {}", rangeId);
+
+                    byte[] baseDigest = range.getRangeDigest();
+                    if (rehasher != null) {
+                        try {
+                            baseDigest = base.computeRangeDigest(range, rehasher);
+                        } catch (IOException e) {
+                            LOGGER.error("[diffRanges] Failed to rehash base range " + rangeId, e);
+                        }
+                    }
+                    if (!MessageDigest.isEqual(currentRange.getRangeDigest(), baseDigest)) {
+                        diffInfos.put(rangeId, RangeDiffInfoType.CHANGED);
+                    }
                 }
             }
         }
-        return Collections.unmodifiableMap(new TreeMap<String, RangeDiffInfoType>(diffInfos));
+        return Collections.unmodifiableMap(diffInfos);
     }
 
     public static enum RangeDiffInfoType {
@@ -407,17 +1438,47 @@ public class RangedTextFile {
 
         private static final long serialVersionUID = 1497029928792560129L;
 
+        /**
+         * The serialized form keeps the original int "len" field, so that indexes persisted before lengths were
+         * 64-bit can still be read, and adds the full 64-bit "length".
+         */
+        private static final ObjectStreamField[] serialPersistentFields = {
+                new ObjectStreamField("rangeId", String.class),
+                new ObjectStreamField("offset", Long.TYPE),
+                new ObjectStreamField("len", Integer.TYPE),
+                new ObjectStreamField("length", Long.TYPE),
+                new ObjectStreamField("rangeDigest", byte[].class)
+        };
+
         String rangeId;
         long offset;
-        int len;
+        long len;
         byte[] rangeDigest;
 
-        TextRange(String rangeId, long offset, int len) {
+        TextRange(String rangeId, long offset, long len) {
             this.rangeId = rangeId;
             this.offset = offset;
             this.len = len;
         }
 
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ObjectOutputStream.PutField fields = out.putFields();
+            fields.put("rangeId", rangeId);
+            fields.put("offset", offset);
+            fields.put("len", (int) Math.min(len, Integer.MAX_VALUE));
+            fields.put("length", len);
+            fields.put("rangeDigest", rangeDigest);
+            out.writeFields();
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            rangeId = (String) fields.get("rangeId", null);
+            offset = fields.get("offset", 0L);
+            len = fields.defaulted("length") ? fields.get("len", 0) : fields.get("length", 0L);
+            rangeDigest = (byte[]) fields.get("rangeDigest", null);
+        }
+
         public String getRangeId() {
             return rangeId;
         }
@@ -426,7 +1487,23 @@ public class RangedTextFile {
             return offset;
         }
 
+        /**
+         * @return the length of the range in bytes
+         * @throws IllegalStateException if the range is larger than 2 GB
+         * @deprecated ranges may exceed 2 GB; use {@link #getLength()}
+         */
+        @Deprecated
         public int getLen() {
+            if (len > Integer.MAX_VALUE) {
+                throw new IllegalStateException("Range " + rangeId + " is too large for getLen(): " + len);
+            }
+            return (int) len;
+        }
+
+        /**
+         * @return the length of the range in bytes
+         */
+        public long getLength() {
             return len;
         }
 
@@ -448,38 +1525,131 @@ public class RangedTextFile {
         }
     }
 
-    private static String readWidth(final InputStream stream,
-                                    final CharsetDecoder decoder,
-                                    final int bytesToRead,
-                                    final int width) throws IOException {
-        CharBuffer buffer = CharBuffer.allocate(width);
-        byte[] bytes = new byte[bytesToRead];
-        int read = stream.read(bytes);
-        decoder.decode(ByteBuffer.wrap(bytes), buffer, true);
-        buffer.rewind();
-        return buffer.toString();
+    static void skipFully(final InputStream stream, final long toSkip) throws IOException {
+        long remaining = toSkip;
+        while (remaining > 0) {
+            long skipped = stream.skip(remaining);
+            if (skipped <= 0) {
+                if (stream.read() == -1) {
+                    throw new EOFException("Unexpected end of file while skipping " + toSkip + " bytes");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static byte[] readFully(final InputStream stream, final long length) throws IOException {
+        if (length > MAX_MATERIALIZED_RANGE) {
+            throw new IOException("Cannot materialize " + length + " bytes in memory; use openRange() instead");
+        }
+        int len = (int) length;
+        byte[] buf = new byte[len];
+        int read = 0;
+        while (read < len) {
+            int count = stream.read(buf, read, len - read);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of file after " + read + " of " + len + " bytes");
+            }
+            read += count;
+        }
+        return buf;
+    }
+
+    /**
+     * Digests the next len bytes of the stream in fixed-size chunks
+     */
+    static byte[] digest(final InputStream stream, final long len, final MessageDigest digester)
+            throws IOException {
+        byte[] buf = new byte[(int) Math.min(DIGEST_CHUNK_SIZE, Math.max(len, 1L))];
+        long remaining = len;
+        while (remaining > 0) {
+            int count = stream.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (count < 0) {
+                throw new EOFException("Unexpected end of file after " + (len - remaining) + " of " + len + " bytes");
+            }
+            digester.update(buf, 0, count);
+            remaining -= count;
+        }
+        return digester.digest();
     }
 
-    private static boolean readUntilNewLine(InputStream stream) throws IOException {
-        boolean foundNewLine = false;
+    /**
+     * Bounds a data stream to the length of a single range
+     */
+    static final class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(final InputStream in, final long length) {
+            super(in);
+            this.remaining = length;
+        }
 
-        int read;
-        while (!foundNewLine && (read = stream.read()) != -1) {
-            if (read == '\n') {
-                foundNewLine = true;
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read();
+            if (read >= 0) {
+                remaining--;
             }
+            return read;
         }
 
-        return foundNewLine;
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = super.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            if (skipped > 0) {
+                remaining -= skipped;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
     }
 
     private static File copyStreamToTempFile(InputStream stream, File tempDir) throws IOException {
+        return copyStreamToTempFile(stream, tempDir, null);
+    }
+
+    private static File copyStreamToTempFile(InputStream stream, File tempDir, BuildMonitor monitor) throws IOException {
         OutputStream out = null;
         File temp = null;
         try {
             temp = File.createTempFile(RangedTextFile.class.getSimpleName(), ".dat", tempDir);
             out = new FileOutputStream(temp);
-            IOUtils.copy(stream, out);
+            if (monitor == null) {
+                IOUtils.copy(stream, out);
+            } else {
+                byte[] buffer = new byte[DIGEST_CHUNK_SIZE];
+                int read;
+                while ((read = stream.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    monitor.addBytesRead(read);
+                    monitor.checkCancelled();
+                }
+            }
 
             return temp;
         } catch (IOException e) {
@@ -492,15 +1662,15 @@ public class RangedTextFile {
         }
     }
 
-    private static File serializeObjectToTempFile(Object obj, File tempDir) throws IOException {
+    private static File writeIndexToTempFile(RangeIndex index, File tempDir) throws IOException {
         File indexFile = null;
-        ObjectOutputStream oos = null;
+        OutputStream out = null;
         try {
-            indexFile = File.createTempFile(RangedTextFile.class.getSimpleName(), ".dat", tempDir);
+            indexFile = File.createTempFile(RangedTextFile.class.getSimpleName(), ".idx", tempDir);
 
-            oos = new ObjectOutputStream(new FileOutputStream(indexFile));
+            out = new FileOutputStream(indexFile);
 
-            oos.writeObject(obj);
+            index.writeColumnar(out);
 
             return indexFile;
         } catch (IOException e) {
@@ -509,30 +1679,41 @@ public class RangedTextFile {
             }
             throw e;
         } finally {
-            IOUtils.closeQuietly(oos);
+            IOUtils.closeQuietly(out);
         }
     }
 
     private static void sort(final File toSort,
                              final Charset charset,
-                             final File tempDir) throws IOException {
+                             final File tempDir,
+                             final BuildMonitor monitor) throws IOException {
 
         long startSort = System.currentTimeMillis();
 
-        List<File> l = ExternalSort.sortInBatch(toSort, SORT_CMP, ExternalSort.DEFAULTMAXTEMPFILES, charset, tempDir);
-        ExternalSort.mergeSortedFiles(l, toSort, SORT_CMP, charset);
+        monitor.setPhase(BuildMonitor.Phase.SORTING);
+        List<File> l = ExternalSort.sortInBatch(toSort, SORT_CMP, ExternalSort.DEFAULTMAXTEMPFILES, charset, tempDir,
+                monitor);
+        monitor.setPhase(BuildMonitor.Phase.MERGING);
+        ExternalSort.mergeSortedFiles(l, toSort, SORT_CMP, charset, monitor);
 
         long endSort = System.currentTimeMillis();
         LOGGER.info("[sort] Sorted {} in {} seconds.", toSort.getAbsolutePath(),
                 String.format("%.2f", (endSort - startSort) / 1000.0D));
     }
 
-    private static MessageDigest getDigester() {
+    /**
+     * @param algorithm {@link #DIGEST_MURMUR3_128} or the name of any {@link MessageDigest} algorithm
+     * @return a new digester
+     * @throws IllegalArgumentException if the algorithm is not available
+     */
+    static MessageDigest getDigester(final String algorithm) {
+        if (DIGEST_MURMUR3_128.equals(algorithm)) {
+            return new Murmur3Digest();
+        }
         try {
-            return MessageDigest.getInstance("SHA");
+            return MessageDigest.getInstance(algorithm);
         } catch (NoSuchAlgorithmException e) {
-            LOGGER.error("[getDigester] This shouldn't have happened", e);
+            throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm, e);
         }
-        return null;
     }
 }
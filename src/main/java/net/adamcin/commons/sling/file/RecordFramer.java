@@ -0,0 +1,43 @@
+package net.adamcin.commons.sling.file;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a byte stream into records for {@link RangedTextFile}, without decoding it. Each record is returned together
+ * with its framing bytes (delimiter or length prefix), so that consecutive records, and therefore ranges, are
+ * contiguous spans of the data file. See {@link Records} for the built-in framers.
+ *
+ * Framers hold no per-stream state and may be shared between threads.
+ */
+public interface RecordFramer {
+
+    /**
+     * Reads the next record exactly as it appears in the stream
+     * @param in the stream, which should be buffered, such as a {@link java.io.BufferedInputStream}. Framers may use
+     *           mark and reset to read ahead when the stream supports them.
+     * @return the record including its framing, or null at the end of the stream
+     * @throws IOException if the stream can't be read or ends within a record which requires more bytes
+     */
+    byte[] next(InputStream in) throws IOException;
+
+    /**
+     * @param record a record returned by {@link #next(java.io.InputStream)}
+     * @return the position of the first payload byte
+     */
+    int payloadOffset(byte[] record);
+
+    /**
+     * @param record a record returned by {@link #next(java.io.InputStream)}
+     * @return the number of payload bytes, not counting any framing
+     */
+    int payloadLength(byte[] record);
+
+    /**
+     * Adds any framing missing from the last record of a stream, such as a final delimiter, so that the record can
+     * be followed by another one when sorted.
+     * @param record a record returned by {@link #next(java.io.InputStream)}
+     * @return the record itself if it is already terminated, or a terminated copy
+     */
+    byte[] terminate(byte[] record);
+}
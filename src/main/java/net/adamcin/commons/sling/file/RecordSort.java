@@ -0,0 +1,224 @@
+package net.adamcin.commons.sling.file;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External merge sort of framed records, the byte-level counterpart of {@link ExternalSort}. Records are ordered by
+ * key using {@link RangedTextFile#SORT_CMP}, then by payload bytes, so that equal content always sorts to the same
+ * bytes regardless of input order. Records are written with their original framing.
+ */
+final class RecordSort {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecordSort.class);
+
+    // approximate heap used by an entry beyond its record bytes and key chars
+    private static final int ENTRY_OVERHEAD = 64;
+
+    static final Comparator<Entry> ENTRY_CMP = new Comparator<Entry>() {
+        public int compare(Entry left, Entry right) {
+            int result = RangedTextFile.SORT_CMP.compare(left.key, right.key);
+            if (result != 0) {
+                return result;
+            }
+            int common = Math.min(left.payloadLength, right.payloadLength);
+            for (int i = 0; i < common; i++) {
+                int l = left.record[left.payloadOffset + i] & 0xff;
+                int r = right.record[right.payloadOffset + i] & 0xff;
+                if (l != r) {
+                    return l - r;
+                }
+            }
+            return left.payloadLength - right.payloadLength;
+        }
+    };
+
+    private final RecordFramer framer;
+    private final KeyExtractor keyExtractor;
+    private final Charset charset;
+    private final File tempDir;
+    private final BuildMonitor monitor;
+
+    RecordSort(final RecordFramer framer, final KeyExtractor keyExtractor, final Charset charset,
+               final File tempDir, final BuildMonitor monitor) {
+        this.framer = framer;
+        this.keyExtractor = keyExtractor;
+        this.charset = charset;
+        this.tempDir = tempDir;
+        this.monitor = monitor != null ? monitor : new BuildMonitor();
+    }
+
+    /**
+     * Sorts the file in place
+     * @param file
+     * @throws IOException
+     */
+    void sort(final File file) throws IOException {
+        long start = System.currentTimeMillis();
+
+        monitor.setPhase(BuildMonitor.Phase.SORTING);
+        List<File> runs = sortInBatch(file, ExternalSort.estimateBestSizeOfBlocks(file, ExternalSort.DEFAULTMAXTEMPFILES));
+        monitor.setPhase(BuildMonitor.Phase.MERGING);
+        long records = merge(runs, file);
+
+        long end = System.currentTimeMillis();
+        LOGGER.info("[sort] Sorted {} records in {} runs in {} seconds.", new Object[]{ records, runs.size(),
+                String.format("%.2f", (end - start) / 1000.0D)});
+    }
+
+    List<File> sortInBatch(final File file, final long blockSize) throws IOException {
+        List<File> runs = new ArrayList<File>();
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        boolean completed = false;
+        try {
+            List<Entry> block = new ArrayList<Entry>();
+            long blockBytes = 0L;
+            Entry entry;
+            while ((entry = read(in)) != null) {
+                block.add(entry);
+                blockBytes += entry.record.length + 2L * entry.key.length() + ENTRY_OVERHEAD;
+                if (block.size() % ExternalSort.CANCEL_CHECK_LINES == 0) {
+                    monitor.checkCancelled();
+                }
+                if (blockBytes >= blockSize) {
+                    runs.add(sortAndSave(block));
+                    block.clear();
+                    blockBytes = 0L;
+                }
+            }
+            if (!block.isEmpty() || runs.isEmpty()) {
+                runs.add(sortAndSave(block));
+            }
+            completed = true;
+        } finally {
+            IOUtils.closeQuietly(in);
+            if (!completed) {
+                for (File run : runs) {
+                    run.delete();
+                }
+            }
+        }
+        return runs;
+    }
+
+    private File sortAndSave(final List<Entry> block) throws IOException {
+        Collections.sort(block, ENTRY_CMP);
+        File run = File.createTempFile("sortInBatch", "records", tempDir);
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(run));
+            for (Entry entry : block) {
+                out.write(framer.terminate(entry.record));
+            }
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            IOUtils.closeQuietly(out);
+            run.delete();
+            throw e;
+        }
+        monitor.addLinesSorted(block.size());
+        monitor.addRunWritten(block.size());
+        monitor.getMetrics().bytesWritten(run.length());
+        return run;
+    }
+
+    /**
+     * Merges the sorted runs into the output file, deleting the runs
+     * @return the number of records merged
+     */
+    long merge(final List<File> runs, final File output) throws IOException {
+        monitor.getMetrics().mergeStarted(runs.size());
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size()), new Comparator<Run>() {
+            public int compare(Run left, Run right) {
+                return ENTRY_CMP.compare(left.head, right.head);
+            }
+        });
+        List<Run> open = new ArrayList<Run>(runs.size());
+        OutputStream out = null;
+        long records = 0L;
+        try {
+            for (File file : runs) {
+                monitor.getMetrics().bytesRead(file.length());
+                Run run = new Run(file);
+                open.add(run);
+                if (run.advance()) {
+                    queue.add(run);
+                }
+            }
+
+            out = new BufferedOutputStream(new FileOutputStream(output));
+            while (!queue.isEmpty()) {
+                Run run = queue.poll();
+                out.write(run.head.record);
+                if (++records % ExternalSort.CANCEL_CHECK_LINES == 0) {
+                    monitor.addLinesMerged(ExternalSort.CANCEL_CHECK_LINES);
+                    monitor.checkCancelled();
+                }
+                if (run.advance()) {
+                    queue.add(run);
+                }
+            }
+            monitor.addLinesMerged(records % ExternalSort.CANCEL_CHECK_LINES);
+            out.close();
+            out = null;
+            monitor.getMetrics().bytesWritten(output.length());
+        } finally {
+            IOUtils.closeQuietly(out);
+            for (Run run : open) {
+                IOUtils.closeQuietly(run.in);
+            }
+            for (File file : runs) {
+                file.delete();
+            }
+        }
+        return records;
+    }
+
+    private Entry read(final InputStream in) throws IOException {
+        byte[] record = framer.next(in);
+        if (record == null) {
+            return null;
+        }
+        int offset = framer.payloadOffset(record);
+        int length = framer.payloadLength(record);
+        return new Entry(keyExtractor.extractKey(record, offset, length, charset), record, offset, length);
+    }
+
+    static final class Entry {
+        final String key;
+        final byte[] record;
+        final int payloadOffset;
+        final int payloadLength;
+
+        Entry(final String key, final byte[] record, final int payloadOffset, final int payloadLength) {
+            this.key = key;
+            this.record = record;
+            this.payloadOffset = payloadOffset;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    private final class Run {
+        final InputStream in;
+        Entry head;
+
+        Run(final File file) throws IOException {
+            this.in = new BufferedInputStream(new FileInputStream(file));
+        }
+
+        boolean advance() throws IOException {
+            head = read(in);
+            return head != null;
+        }
+    }
+}
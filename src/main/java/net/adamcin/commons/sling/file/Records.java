@@ -0,0 +1,273 @@
+package net.adamcin.commons.sling.file;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Built-in {@link RecordFramer} and {@link KeyExtractor} implementations
+ */
+public final class Records {
+
+    private Records() {
+    }
+
+    /**
+     * @return a framer for newline-terminated lines
+     */
+    public static RecordFramer newlineDelimited() {
+        return delimited((byte) '\n');
+    }
+
+    /**
+     * @param delimiter the byte which terminates each record
+     * @return a framer for records terminated by the delimiter. The last record in a stream need not be terminated.
+     */
+    public static RecordFramer delimited(final byte delimiter) {
+        return new DelimitedFramer(delimiter);
+    }
+
+    /**
+     * @return a framer for records preceded by their payload length as a 4-byte big-endian int, as written by
+     * {@link java.io.DataOutputStream#writeInt(int)}
+     */
+    public static RecordFramer lengthPrefixed() {
+        return new LengthPrefixedFramer();
+    }
+
+    /**
+     * @param width
+     * @return an extractor which uses the first width characters of the payload as the key, or the whole payload if
+     * it is shorter
+     */
+    public static KeyExtractor fixedWidth(final int width) {
+        return new FixedWidthKey(width);
+    }
+
+    /**
+     * @param separator field separator, e.g. ',' for CSV
+     * @param index zero-based index of the key field
+     * @return an extractor which uses a single separated field as the key. Quoting is not interpreted, so the key
+     * field must not contain the separator. A missing field is an empty key.
+     */
+    public static KeyExtractor field(final byte separator, final int index) {
+        return new FieldKey(separator, index);
+    }
+
+    static String decode(final byte[] bytes, final int offset, final int length, final Charset charset) {
+        return charset.decode(ByteBuffer.wrap(bytes, offset, length)).toString();
+    }
+
+    static final class DelimitedFramer implements RecordFramer {
+        static final int MIN_READ = 128;
+        static final int MAX_READ = 8192;
+        // larger buffers, grown for unusually long records, are not kept
+        static final int MAX_RETAINED = 64 * 1024;
+
+        private final byte delimiter;
+
+        // framers are shared by the threads of a parallel indexer, so each thread reuses its own buffer
+        private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[MAX_READ];
+            }
+        };
+
+        DelimitedFramer(final byte delimiter) {
+            this.delimiter = delimiter;
+        }
+
+        byte getDelimiter() {
+            return delimiter;
+        }
+
+        /**
+         * Reads ahead in chunks when the stream supports mark/reset, then rewinds to just after the delimiter.
+         * Otherwise the stream is read a byte at a time.
+         */
+        public byte[] next(final InputStream in) throws IOException {
+            byte[] buffer = scratch.get();
+            int count = 0;
+            if (in.markSupported()) {
+                int chunk = MIN_READ;
+                while (true) {
+                    if (buffer.length - count < chunk) {
+                        buffer = copyOf(buffer, Math.max(buffer.length * 2, count + chunk));
+                    }
+                    in.mark(chunk);
+                    int read = in.read(buffer, count, chunk);
+                    if (read == -1) {
+                        break;
+                    }
+                    int end = indexOf(buffer, count, count + read, delimiter);
+                    if (end >= 0) {
+                        in.reset();
+                        skipFully(in, end + 1 - count);
+                        count = end + 1;
+                        break;
+                    }
+                    count += read;
+                    chunk = Math.min(chunk * 2, MAX_READ);
+                }
+            } else {
+                int read;
+                while ((read = in.read()) != -1) {
+                    if (count == buffer.length) {
+                        buffer = copyOf(buffer, count * 2);
+                    }
+                    buffer[count++] = (byte) read;
+                    if ((byte) read == delimiter) {
+                        break;
+                    }
+                }
+            }
+            if (buffer.length <= MAX_RETAINED) {
+                scratch.set(buffer);
+            }
+            return count == 0 ? null : copyOf(buffer, count);
+        }
+
+        public int payloadOffset(final byte[] record) {
+            return 0;
+        }
+
+        public int payloadLength(final byte[] record) {
+            return isTerminated(record) ? record.length - 1 : record.length;
+        }
+
+        public byte[] terminate(final byte[] record) {
+            if (isTerminated(record)) {
+                return record;
+            }
+            byte[] terminated = copyOf(record, record.length + 1);
+            terminated[record.length] = delimiter;
+            return terminated;
+        }
+
+        private boolean isTerminated(final byte[] record) {
+            return record.length > 0 && record[record.length - 1] == delimiter;
+        }
+    }
+
+    static final class LengthPrefixedFramer implements RecordFramer {
+        static final int PREFIX_LENGTH = 4;
+
+        public byte[] next(final InputStream in) throws IOException {
+            int b0 = in.read();
+            if (b0 == -1) {
+                return null;
+            }
+            int b1 = in.read(), b2 = in.read(), b3 = in.read();
+            if ((b1 | b2 | b3) < 0) {
+                throw new EOFException("Stream ended within a record length prefix");
+            }
+            int length = (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+            if (length < 0 || length > Integer.MAX_VALUE - PREFIX_LENGTH) {
+                throw new IOException("Invalid record length: " + length);
+            }
+
+            byte[] record = new byte[PREFIX_LENGTH + length];
+            record[0] = (byte) b0;
+            record[1] = (byte) b1;
+            record[2] = (byte) b2;
+            record[3] = (byte) b3;
+            int pos = PREFIX_LENGTH;
+            while (pos < record.length) {
+                int read = in.read(record, pos, record.length - pos);
+                if (read == -1) {
+                    throw new EOFException("Stream ended within a record of " + length + " bytes");
+                }
+                pos += read;
+            }
+            return record;
+        }
+
+        public int payloadOffset(final byte[] record) {
+            return PREFIX_LENGTH;
+        }
+
+        public int payloadLength(final byte[] record) {
+            return record.length - PREFIX_LENGTH;
+        }
+
+        public byte[] terminate(final byte[] record) {
+            return record;
+        }
+    }
+
+    static final class FixedWidthKey implements KeyExtractor {
+        // no supported charset needs more than 4 bytes to encode a single char
+        static final int MAX_BYTES_PER_CHAR = 4;
+
+        private final int width;
+
+        FixedWidthKey(final int width) {
+            this.width = width;
+        }
+
+        public String extractKey(final byte[] record, final int offset, final int length, final Charset charset) {
+            // enough bytes for width whole characters. Anything decoded past the width is dropped.
+            long maxBytes = (long) width * MAX_BYTES_PER_CHAR;
+            String key = decode(record, offset, (int) Math.min(length, maxBytes), charset);
+            return key.length() > width ? key.substring(0, width) : key;
+        }
+    }
+
+    static final class FieldKey implements KeyExtractor {
+        private final byte separator;
+        private final int index;
+
+        FieldKey(final byte separator, final int index) {
+            this.separator = separator;
+            this.index = index;
+        }
+
+        public String extractKey(final byte[] record, final int offset, final int length, final Charset charset) {
+            int end = offset + length;
+            int start = offset;
+            for (int field = 0; field < index; field++) {
+                while (start < end && record[start] != separator) {
+                    start++;
+                }
+                if (start == end) {
+                    return "";
+                }
+                start++;
+            }
+            int stop = start;
+            while (stop < end && record[stop] != separator && record[stop] != '\r') {
+                stop++;
+            }
+            return decode(record, start, stop - start, charset);
+        }
+    }
+
+    private static int indexOf(final byte[] bytes, final int from, final int to, final byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void skipFully(final InputStream in, final long n) throws IOException {
+        long remaining = n;
+        while (remaining > 0L) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0L) {
+                throw new EOFException("Stream ended while skipping to the end of a record");
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static byte[] copyOf(final byte[] bytes, final int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, Math.min(bytes.length, length));
+        return copy;
+    }
+}
@@ -12,6 +12,8 @@ import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Title:       Component Factory Manager
@@ -54,18 +56,14 @@ public class ComponentFactoryManager<ComponentT> {
     private final BundleContext bundleContext;
 
     /**
-     * To create an object instance, a ServiceReference must be gotten. When the object is no longer needed, we must be
-     * able to unget the ServiceReference. Thus, we maintain a mapping between object instances and their associated
-     * ServiceReferences
+     * To create an object instance, a ServiceReference must be gotten and a ComponentInstance must be created. When the
+     * object is no longer needed, we must be able to dispose the ComponentInstance and unget the ServiceReference.
+     * Thus, we maintain a mapping between object instances and both of them. The map is keyed by object identity, so
+     * components with their own equals() and hashCode() can't be confused with each other, and it is a concurrent map
+     * so that request threads creating and releasing components don't all wait on the same lock.
      */
-    private final Map<Object, ServiceReference> refMap = new HashMap<Object, ServiceReference>();
-
-    /**
-     * To create an object instance, a ComponentInstance must be created. When the object is no longer needed, we must
-     * be able to dispose the ComponentInstance. Thus, we maintain a mapping between object instances and their
-     * associated ComponentInstances
-     */
-    private final Map<Object, ComponentInstance> instanceMap = new HashMap<Object, ComponentInstance>();
+    private final ConcurrentMap<IdentityKey, TrackedComponent> tracked =
+            new ConcurrentHashMap<IdentityKey, TrackedComponent>();
 
     private static final String FACTORY_PROPERTY = "component.factory";
 
@@ -143,12 +141,7 @@ public class ComponentFactoryManager<ComponentT> {
         }
         // Otherwise, keep track of the ServiceReference and ComponentInstance for future disposal
         else {
-
-            // Synchronize on the refMap object for thread safety
-            synchronized (this.refMap) {
-                this.refMap.put(component, ref);
-                this.instanceMap.put(component, instance);
-            }
+            this.tracked.put(new IdentityKey(component), new TrackedComponent(ref, instance));
         }
 
         // Return the object instance
@@ -157,26 +150,19 @@ public class ComponentFactoryManager<ComponentT> {
 
     /**
      * After the component object is no longer needed, it's associated ServiceReference and ComponentInstance should be
-     * released and removed from the manager's HashMaps.
+     * released and removed from the manager's map.
      * @param component The component object previously returned by the newInstance method
      */
     public void release(ComponentT component) {
+        if (component == null) {
+            return;
+        }
 
-        // We use the refMap object for synchronization, as HashMaps are not thread safe, and services that use this
-        // ComponentFactoryManager will likely be used by many threads
-        synchronized (this.refMap) {
-
-            // Dispose the ComponentInstance
-            if (this.instanceMap.containsKey(component)) {
-                this.instanceMap.get(component).dispose();
-                this.instanceMap.remove(component);
-            }
-
-            // Unget the ServiceReference
-            if (this.refMap.containsKey(component)) {
-                this.bundleContext.ungetService(this.refMap.get(component));
-                this.refMap.remove(component);
-            }
+        // Removing the entry is atomic, so if two threads release the same component, only the one that removed it
+        // disposes the ComponentInstance and ungets the ServiceReference
+        TrackedComponent removed = this.tracked.remove(new IdentityKey(component));
+        if (removed != null) {
+            removed.release(this.bundleContext);
         }
     }
 
@@ -184,20 +170,21 @@ public class ComponentFactoryManager<ComponentT> {
      * Release all component instances and unget all service references
      */
     public void releaseAll() {
-        synchronized (this.refMap) {
-            for (ComponentInstance instance : this.instanceMap.values()) {
-                instance.dispose();
-            }
-
-            for (ServiceReference ref : this.refMap.values()) {
-                this.bundleContext.ungetService(ref);
+        for (Map.Entry<IdentityKey, TrackedComponent> entry : this.tracked.entrySet()) {
+            // Skip any entry a concurrent release() got to first
+            if (this.tracked.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().release(this.bundleContext);
             }
-
-            this.instanceMap.clear();
-            this.refMap.clear();
         }
     }
 
+    /**
+     * @return the number of component instances which have not been released
+     */
+    public int getInstanceCount() {
+        return this.tracked.size();
+    }
+
     /**
      * Convenience method that returns only the properties map of the specified factory
      * @param factoryName
@@ -274,4 +261,48 @@ public class ComponentFactoryManager<ComponentT> {
     public static <ComponentType> ComponentFactoryManager<ComponentType> newManagerInstance(BundleContext bundleContext, Class<ComponentType> componentClass){
         return new ComponentFactoryManager<ComponentType>(bundleContext, componentClass);
     }
+
+    /**
+     * Map key which compares the component object by identity, since there is no concurrent IdentityHashMap
+     */
+    static final class IdentityKey {
+        private final Object component;
+        private final int hash;
+
+        IdentityKey(Object component) {
+            this.component = component;
+            this.hash = System.identityHashCode(component);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof IdentityKey && ((IdentityKey) obj).component == this.component;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * The ServiceReference and ComponentInstance behind a component object
+     */
+    static final class TrackedComponent {
+        private final ServiceReference ref;
+        private final ComponentInstance instance;
+
+        TrackedComponent(ServiceReference ref, ComponentInstance instance) {
+            this.ref = ref;
+            this.instance = instance;
+        }
+
+        void release(BundleContext bundleContext) {
+            try {
+                this.instance.dispose();
+            } finally {
+                bundleContext.ungetService(this.ref);
+            }
+        }
+    }
 }
@@ -0,0 +1,215 @@
+package net.adamcin.commons.sling.resource;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link ResourceResolverWrapper} which remembers the results of {@link #getResource(String)},
+ * {@link #getResource(Resource, String)}, {@link #resolve(String)} and {@link #listChildren(Resource)}, and of
+ * {@link Resource#getParent()}, {@link Resource#getChild(String)} and {@link Resource#listChildren()} on the
+ * resources it returns, for the lifetime of the wrapper. Missing resources are remembered as well. Each cache keeps
+ * its most recently used entries up to a maximum size.
+ *
+ * Like the resolver it wraps, an instance is meant to be used by one thread at a time, typically for a single request.
+ * Changes made to the repository after a lookup are not seen until {@link #clearCache()} is called.
+ */
+public class CachingResourceResolverWrapper extends ResourceResolverWrapper {
+
+    public static final int DEFAULT_MAX_RESOURCES = 1024;
+    public static final int DEFAULT_MAX_CHILD_LISTS = 256;
+
+    final int maxResources;
+    final int maxChildLists;
+    final Map<String, Resource> resources;
+    final Map<String, List<Resource>> children;
+    long hits;
+    long misses;
+
+    public CachingResourceResolverWrapper(final ResourceResolver wrappedResolver) {
+        this(wrappedResolver, DEFAULT_MAX_RESOURCES, DEFAULT_MAX_CHILD_LISTS);
+    }
+
+    /**
+     * @param wrappedResolver
+     * @param maxResources maximum number of resource lookups to remember
+     * @param maxChildLists maximum number of child lists to remember
+     */
+    public CachingResourceResolverWrapper(final ResourceResolver wrappedResolver, int maxResources, int maxChildLists) {
+        super(wrappedResolver);
+        this.maxResources = maxResources;
+        this.maxChildLists = maxChildLists;
+        this.resources = new LruMap<Resource>(maxResources);
+        this.children = new LruMap<List<Resource>>(maxChildLists);
+    }
+
+    @Override
+    public Resource resolve(String absPath) {
+        String key = "resolve:" + absPath;
+        Resource cached = this.resources.get(key);
+        if (cached != null) {
+            this.hits++;
+            return cached;
+        }
+        this.misses++;
+        Resource resource = super.resolve(absPath);
+        this.resources.put(key, resource);
+        return resource;
+    }
+
+    @Override
+    public Resource getResource(String path) {
+        return getCachedResource("getResource:" + path, null, path);
+    }
+
+    @Override
+    public Resource getResource(Resource base, String path) {
+        if (base == null || path.startsWith("/")) {
+            return super.getResource(base, path);
+        }
+        return getCachedResource("getResource:" + base.getPath() + "//" + path, base, path);
+    }
+
+    @Override
+    public Iterator<Resource> listChildren(Resource parent) {
+        List<Resource> cached = getCachedChildren(parent.getPath());
+        if (cached == null) {
+            cached = cacheChildren(parent.getPath(), super.listChildren(parent));
+        }
+        return cached.iterator();
+    }
+
+    /**
+     * Clones start with empty caches of the same sizes, since cached resources belong to this wrapper's session
+     */
+    @Override
+    protected ResourceResolverWrapper newClone(ResourceResolver clonedResolver) throws LoginException {
+        if (getClass() != CachingResourceResolverWrapper.class) {
+            return super.newClone(clonedResolver);
+        }
+        return new CachingResourceResolverWrapper(clonedResolver, this.maxResources, this.maxChildLists);
+    }
+
+    /**
+     * Forgets all remembered resources and child lists
+     */
+    public void clearCache() {
+        this.resources.clear();
+        this.children.clear();
+    }
+
+    public long getHitCount() {
+        return this.hits;
+    }
+
+    public long getMissCount() {
+        return this.misses;
+    }
+
+    @Override
+    Resource newResourceWrapper(Resource resource) {
+        return new CachingResourceWrapper(resource);
+    }
+
+    private Resource getCachedResource(String key, Resource base, String path) {
+        Resource cached = this.resources.get(key);
+        if (cached != null || this.resources.containsKey(key)) {
+            this.hits++;
+            return cached;
+        }
+        this.misses++;
+        Resource resource = base != null ? super.getResource(base, path) : super.getResource(path);
+        this.resources.put(key, resource);
+        return resource;
+    }
+
+    List<Resource> getCachedChildren(String path) {
+        List<Resource> cached = this.children.get(path);
+        if (cached != null) {
+            this.hits++;
+        } else {
+            this.misses++;
+        }
+        return cached;
+    }
+
+    List<Resource> cacheChildren(String path, Iterator<Resource> source) {
+        List<Resource> list = new ArrayList<Resource>();
+        if (source != null) {
+            while (source.hasNext()) {
+                list.add(source.next());
+            }
+        }
+        list = Collections.unmodifiableList(list);
+        this.children.put(path, list);
+        return list;
+    }
+
+    class CachingResourceWrapper extends ResolverOverridingResourceWrapper {
+
+        CachingResourceWrapper(Resource resource) {
+            super(resource);
+        }
+
+        @Override
+        public Resource getParent() {
+            String key = "getParent:" + getPath();
+            Resource cached = resources.get(key);
+            if (cached != null || resources.containsKey(key)) {
+                hits++;
+                return cached;
+            }
+            misses++;
+            Resource parent = super.getParent();
+            resources.put(key, parent);
+            return parent;
+        }
+
+        @Override
+        public Resource getChild(String relPath) {
+            String key = "getChild:" + getPath() + "//" + relPath;
+            Resource cached = resources.get(key);
+            if (cached != null || resources.containsKey(key)) {
+                hits++;
+                return cached;
+            }
+            misses++;
+            Resource child = super.getChild(relPath);
+            resources.put(key, child);
+            return child;
+        }
+
+        @Override
+        public Iterator<Resource> listChildren() {
+            List<Resource> cached = getCachedChildren(getPath());
+            if (cached == null) {
+                cached = cacheChildren(getPath(), super.listChildren());
+            }
+            return cached.iterator();
+        }
+    }
+
+    /**
+     * Access-ordered map which drops its least recently used entry when full
+     */
+    static class LruMap<V> extends LinkedHashMap<String, V> {
+        final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > this.maxSize;
+        }
+    }
+}
@@ -1,10 +1,20 @@
 package net.adamcin.commons.sling.resource;
 
 import org.apache.sling.api.resource.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DepthResourceIterator implements Iterator<Resource> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DepthResourceIterator.class);
+
     static final Comparator<Resource> DEFAULT_COMPARATOR = new Comparator<Resource>() {
         public int compare(Resource left, Resource right) {
             return left.getName().compareTo(right.getName());
@@ -15,23 +25,88 @@ public class DepthResourceIterator implements Iterator<Resource> {
     final int returnDepth;
     final String lowerBound;
     final String upperBound;
+    final boolean assumeOrdered;
     
     final Stack<Resource> resources = new Stack<Resource>();
     final Stack<Iterator<Resource>> iterators = new Stack<Iterator<Resource>>();
+    final StringBuilder prefix = new StringBuilder();
+    final StringBuilder checkpoint = new StringBuilder();
     Iterator<Resource> currentIterator;
     
     Resource nextResource;
+    String resumeAfter;
+
+    final Executor prefetchExecutor;
+    final int prefetchSiblings;
+    final int maxPrefetched;
+    final Map<Resource, Future<ChildIterator>> prefetched = new IdentityHashMap<Resource, Future<ChildIterator>>();
+    final AtomicInteger prefetchedCount = new AtomicInteger();
 
     public DepthResourceIterator(final Resource rootResource, int returnDepth, final String lowerBound, final String upperBound) {
         this(rootResource, returnDepth, lowerBound, upperBound, DEFAULT_COMPARATOR);
     }
 
     public DepthResourceIterator(final Resource rootResource, int returnDepth, final String lowerBound, final String upperBound, final Comparator<Resource> resourceComparator) {
+        this(rootResource, returnDepth, lowerBound, upperBound, resourceComparator, false);
+    }
+
+    /**
+     * @param rootResource
+     * @param returnDepth
+     * @param lowerBound
+     * @param upperBound
+     * @param resourceComparator
+     * @param assumeOrdered true to stream children in the order the provider returns them, checking each against
+     *                      the previous one with the comparator. Children are only buffered and sorted from the first
+     *                      inversion on, and a warning is logged, since the siblings already returned can't be
+     *                      reordered.
+     */
+    public DepthResourceIterator(final Resource rootResource, int returnDepth, final String lowerBound, final String upperBound, final Comparator<Resource> resourceComparator,
+                                 boolean assumeOrdered) {
+        this(rootResource, returnDepth, lowerBound, upperBound, resourceComparator, assumeOrdered, null, 0, 0, null, null);
+    }
+
+    /**
+     * Creates an iterator which lists the children of upcoming siblings on the prefetchExecutor while the consumer
+     * works through the current subtree. Children are listed and sorted by {@link #listChildren(Resource)} on the
+     * executor's threads, so the underlying resource provider must tolerate concurrent reads.
+     * @param rootResource
+     * @param returnDepth
+     * @param lowerBound
+     * @param upperBound
+     * @param resourceComparator
+     * @param prefetchExecutor executor for prefetching, or null to list children synchronously
+     * @param prefetchSiblings number of siblings following the current one to prefetch children for
+     * @param maxPrefetched maximum number of prefetched child resources held, counting each listing in progress as
+     *                      one. A listing which turns out too large to hold is dropped and repeated synchronously.
+     */
+    public DepthResourceIterator(final Resource rootResource, int returnDepth, final String lowerBound, final String upperBound, final Comparator<Resource> resourceComparator,
+                                 final Executor prefetchExecutor, int prefetchSiblings, int maxPrefetched) {
+        this(rootResource, returnDepth, lowerBound, upperBound, resourceComparator, false, prefetchExecutor,
+                prefetchSiblings, maxPrefetched, null, null);
+    }
+
+    /**
+     * @param rootPrefix concatenated names of the ancestors between the traversal's logical root and rootResource,
+     *                   so that a subtree can be traversed against the bounds of the whole tree
+     * @param resumeAfter checkpoint of a resource to skip if it is the first one found
+     */
+    DepthResourceIterator(final Resource rootResource, int returnDepth, final String lowerBound, final String upperBound, final Comparator<Resource> resourceComparator,
+                          boolean assumeOrdered, final Executor prefetchExecutor, int prefetchSiblings, int maxPrefetched,
+                          final String rootPrefix, final String resumeAfter) {
+        if (rootPrefix != null) {
+            this.prefix.append(rootPrefix);
+        }
+        this.resumeAfter = resumeAfter;
         this.returnDepth = returnDepth;
         this.lowerBound = lowerBound;
         this.upperBound = upperBound;
         this.resourceComparator = resourceComparator;
-        this.currentIterator = listChildren(rootResource);
+        this.assumeOrdered = assumeOrdered;
+        this.prefetchExecutor = prefetchSiblings > 0 && maxPrefetched > 0 ? prefetchExecutor : null;
+        this.prefetchSiblings = prefetchSiblings;
+        this.maxPrefetched = maxPrefetched;
+        this.currentIterator = childrenOf(rootResource);
         this.seek();
     }
 
@@ -41,13 +116,65 @@ public class DepthResourceIterator implements Iterator<Resource> {
 
     public Resource next() {
         Resource temp = this.nextResource;
+        if (temp != null) {
+            this.checkpoint.setLength(0);
+            this.checkpoint.append(this.prefix).append(temp.getName());
+        }
         seek();
         return temp;
     }
 
+    /**
+     * @return the concatenated names from below the root down to the last resource returned by {@link #next()}, or
+     * null if nothing has been returned yet. Pass it to
+     * {@link #resume(Resource, int, String, String, Comparator)} to continue the traversal after that resource.
+     */
+    public String getCheckpoint() {
+        return this.checkpoint.length() > 0 ? this.checkpoint.toString() : null;
+    }
+
+    public static DepthResourceIterator resume(final Resource rootResource, int returnDepth, final String checkpoint, final String upperBound) {
+        return resume(rootResource, returnDepth, checkpoint, upperBound, DEFAULT_COMPARATOR);
+    }
+
+    /**
+     * Creates an iterator which continues a traversal after the resource identified by a checkpoint, by seeking to it
+     * as a lowerBound and skipping the resource itself if it still exists
+     * @param rootResource
+     * @param returnDepth
+     * @param checkpoint value returned by {@link #getCheckpoint()}, or null to start from the beginning
+     * @param upperBound
+     * @param resourceComparator
+     * @return a new iterator
+     */
+    public static DepthResourceIterator resume(final Resource rootResource, int returnDepth, final String checkpoint, final String upperBound, final Comparator<Resource> resourceComparator) {
+        return new DepthResourceIterator(rootResource, returnDepth, checkpoint, upperBound, resourceComparator, false,
+                null, 0, 0, null, checkpoint);
+    }
+
     public void remove() {
         throw new UnsupportedOperationException("remove");
     }
+
+    /**
+     * @param batchSize maximum number of resources in each batch
+     * @param callback called after each batch is processed, or null
+     * @return a view of the remaining resources in batches
+     */
+    public ResourceBatchIterator batches(int batchSize, ResourceBatchIterator.Callback callback) {
+        return new ResourceBatchIterator(this, batchSize, callback);
+    }
+
+    /**
+     * Cancels outstanding prefetches. Only necessary when a prefetching iterator is abandoned before it is exhausted.
+     */
+    public void close() {
+        for (Future<ChildIterator> future : this.prefetched.values()) {
+            future.cancel(false);
+        }
+        this.prefetched.clear();
+        this.prefetchedCount.set(0);
+    }
     
     private void seek() {
         Resource temp = null;
@@ -59,16 +186,21 @@ public class DepthResourceIterator implements Iterator<Resource> {
                 
                 if (this.isWithinBounds(temp)) {
                     if (resources.size() + 1 < this.returnDepth) {
+                        this.prefetch(this.currentIterator);
                         this.resources.push(temp);
+                        this.prefix.append(temp.getName());
                         this.iterators.push(this.currentIterator);
-                        this.currentIterator = listChildren(temp);
+                        this.currentIterator = childrenOf(temp);
+                    } else if (this.resumeAfter != null && this.isCheckpoint(temp)) {
+                        // returned before the checkpoint was taken
                     } else {
                         this.nextResource = temp;
                     }
                 }
                 
             } else if (this.iterators.size() > 0) {
-                this.resources.pop();
+                Resource parent = this.resources.pop();
+                this.prefix.setLength(this.prefix.length() - parent.getName().length());
                 this.currentIterator = this.iterators.pop();
             }
             // make sure this.currentIterator is set properly before leaving this loop
@@ -76,9 +208,129 @@ public class DepthResourceIterator implements Iterator<Resource> {
        
     }
 
+    /**
+     * Checks whether the first resource found when resuming is the one the checkpoint was taken at. Only the first is
+     * checked, since every later one comes after it.
+     */
+    private boolean isCheckpoint(Resource resource) {
+        String token = this.resumeAfter;
+        this.resumeAfter = null;
+        String name = resource.getName();
+        return this.prefix.length() + name.length() == token.length() && compareToBound(name, token) == 0;
+    }
+
+    private Iterator<Resource> childrenOf(Resource parent) {
+        Iterator<Resource> children = null;
+        if (this.prefetchExecutor != null) {
+            Future<ChildIterator> future = this.prefetched.remove(parent);
+            if (future != null) {
+                try {
+                    ChildIterator prefetchedChildren = future.get();
+                    if (prefetchedChildren != null) {
+                        this.prefetchedCount.addAndGet(-prefetchedChildren.children.size());
+                        children = prefetchedChildren;
+                    }
+                } catch (InterruptedException e) {
+                    future.cancel(true);
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    LOGGER.warn("[childrenOf] prefetch failed for {}, listing synchronously", parent.getPath(), e.getCause());
+                }
+            }
+        }
+
+        if (children == null) {
+            children = listChildren(parent);
+        }
+
+        if (children instanceof ChildIterator) {
+            ((ChildIterator) children).narrow(this);
+            return children;
+        } else if (this.prefetchExecutor != null) {
+            return new LookaheadIterator(children);
+        } else {
+            return children;
+        }
+    }
+
+    /**
+     * Submits child listings for the siblings which follow the resource just taken from the iterator, as long as
+     * the prefetched resources, counting one for each listing still in progress, stay under the configured maximum.
+     */
+    private void prefetch(Iterator<Resource> siblings) {
+        List<Resource> upcoming;
+        if (this.prefetchExecutor == null) {
+            return;
+        } else if (siblings instanceof ChildIterator) {
+            upcoming = ((ChildIterator) siblings).peek(this.prefetchSiblings);
+        } else if (siblings instanceof LookaheadIterator) {
+            upcoming = ((LookaheadIterator) siblings).peek(this.prefetchSiblings);
+        } else {
+            return;
+        }
+
+        for (final Resource sibling : upcoming) {
+            if (this.prefetched.containsKey(sibling) || !this.isWithinBounds(sibling)) {
+                continue;
+            }
+            // each listing in progress holds one slot until its size is known
+            if (!reserve(1)) {
+                break;
+            }
+
+            FutureTask<ChildIterator> task = new FutureTask<ChildIterator>(new Callable<ChildIterator>() {
+                public ChildIterator call() throws Exception {
+                    boolean reserved = true;
+                    try {
+                        Iterator<Resource> it = listChildren(sibling);
+                        ChildIterator children;
+                        if (it instanceof ChildIterator) {
+                            children = (ChildIterator) it;
+                        } else {
+                            List<Resource> list = new ArrayList<Resource>();
+                            while (it.hasNext()) {
+                                list.add(it.next());
+                            }
+                            children = new ChildIterator(list, false);
+                        }
+                        if (reserve(children.children.size() - 1)) {
+                            reserved = false;
+                            return children;
+                        } else {
+                            // too many to hold, so the consumer lists them itself when it gets there
+                            return null;
+                        }
+                    } finally {
+                        if (reserved) {
+                            prefetchedCount.decrementAndGet();
+                        }
+                    }
+                }
+            });
+            this.prefetched.put(sibling, task);
+            this.prefetchExecutor.execute(task);
+        }
+    }
+
+    /**
+     * Adds to the prefetched count unless that would take it over the maximum
+     */
+    private boolean reserve(int count) {
+        int current;
+        do {
+            current = this.prefetchedCount.get();
+            if (count > 0 && current + count > this.maxPrefetched) {
+                return false;
+            }
+        } while (!this.prefetchedCount.compareAndSet(current, current + count));
+        return true;
+    }
+
     protected Iterator<Resource> listChildren(Resource parent) {
         Iterator<Resource> simple = parent.listChildren();
-        if (this.resourceComparator != null) {
+        if (this.resourceComparator != null && this.assumeOrdered) {
+            return new OrderCheckingIterator(parent, simple);
+        } else if (this.resourceComparator != null) {
             List<Resource> sortedList = new ArrayList<Resource>();
 
             while (simple.hasNext()) {
@@ -87,40 +339,199 @@ public class DepthResourceIterator implements Iterator<Resource> {
 
             Collections.sort(sortedList, this.resourceComparator);
 
-            return sortedList.iterator();
+            return new ChildIterator(sortedList, this.resourceComparator == DEFAULT_COMPARATOR);
         } else {
             return simple;
         }
     }
     
     protected boolean isWithinBounds(Resource currentResource) {
-        StringBuilder sb = new StringBuilder();
-        for (Resource resource : this.resources) {
-            sb.append(resource.getName());
+        String name = currentResource.getName();
+        return (lowerBound == null || compareToBound(name, lowerBound) >= 0)
+                && (upperBound == null || compareToBound(name, upperBound) <= 0);
+    }
+
+    /**
+     * Compares the current prefix followed by name to the bound, over the length of the shorter of the two, without
+     * building the concatenated string.
+     */
+    int compareToBound(String name, String bound) {
+        int prefixLength = this.prefix.length();
+        int length = Math.min(prefixLength + name.length(), bound.length());
+        for (int i = 0; i < length; i++) {
+            char c = i < prefixLength ? this.prefix.charAt(i) : name.charAt(i - prefixLength);
+            int diff = c - bound.charAt(i);
+            if (diff != 0) {
+                return diff;
+            }
         }
-        
-        sb.append(currentResource.getName());
-        String name = sb.toString();
-        
-        int lv = 0;
-        if (lowerBound != null) {
-            if (lowerBound.length() > name.length()) {
-                lv = lowerBound.substring(0, name.length()).compareTo(name);
+        return 0;
+    }
+
+    /**
+     * Binary search over siblings in name order for the first one which compares above the upper bound. Names sorted
+     * by {@link String#compareTo(String)} stay sorted when truncated to the bound, so the condition is monotonic.
+     */
+    int searchUpperBound(List<Resource> sorted, int from, int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareToBound(sorted.get(mid).getName(), this.upperBound) > 0) {
+                high = mid;
             } else {
-                lv = lowerBound.compareTo(name.substring(0, lowerBound.length()));
+                low = mid + 1;
             }
         }
-        
-        int rv = 0;
-        if (upperBound != null) {
-            if (upperBound.length() > name.length()) {
-                rv = name.compareTo(upperBound.substring(0, name.length()));
+        return low;
+    }
+
+    /**
+     * Binary search over siblings in name order for the first one which may be at or above the lower bound. The
+     * truncated comparison isn't monotonic on this side, since a short name which is a prefix of the bound compares
+     * equal while a longer name after it may compare below, so only the first character is searched on, against the
+     * bound's character at the position of the name. Siblings from the returned index on must still be checked with
+     * {@link #isWithinBounds(Resource)}.
+     */
+    int searchLowerBound(List<Resource> sorted, int from, int to) {
+        int prefixLength = this.prefix.length();
+        if (from >= to || this.lowerBound.length() <= prefixLength || compareToBound("", this.lowerBound) != 0
+                || sorted.get(from).getName().length() == 0) {
+            return from;
+        }
+        char key = this.lowerBound.charAt(prefixLength);
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted.get(mid).getName().charAt(0) >= key) {
+                high = mid;
             } else {
-                rv = name.substring(0, upperBound.length()).compareTo(upperBound);
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Iterator over a materialized child list. When the list is sorted by name, the siblings which are certainly out of
+     * bounds are cut off by binary search, and only the rest are tested one by one.
+     */
+    static class ChildIterator implements Iterator<Resource> {
+        final List<Resource> children;
+        final boolean nameOrdered;
+        int index;
+        int end;
+
+        ChildIterator(List<Resource> children, boolean nameOrdered) {
+            this.children = children;
+            this.nameOrdered = nameOrdered;
+            this.end = children.size();
+        }
+
+        void narrow(DepthResourceIterator traversal) {
+            if (!nameOrdered) {
+                return;
+            }
+            if (traversal.lowerBound != null) {
+                index = traversal.searchLowerBound(children, index, end);
+            }
+            if (traversal.upperBound != null) {
+                end = traversal.searchUpperBound(children, index, end);
+            }
+        }
+
+        List<Resource> peek(int count) {
+            return children.subList(index, Math.min(end, index + count));
+        }
+
+        public boolean hasNext() {
+            return index < end;
+        }
+
+        public Resource next() {
+            if (index >= end) {
+                throw new NoSuchElementException();
             }
+            return children.get(index++);
         }
 
-        return lv <= 0 && rv <= 0;
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+    }
+
+    /**
+     * Streams children in provider order while checking each against the previous one. At the first inversion, the
+     * remaining children are buffered and sorted.
+     */
+    class OrderCheckingIterator implements Iterator<Resource> {
+        final Resource parent;
+        Iterator<Resource> source;
+        Resource previous;
+        boolean buffered;
+
+        OrderCheckingIterator(Resource parent, Iterator<Resource> source) {
+            this.parent = parent;
+            this.source = source;
+        }
+
+        public boolean hasNext() {
+            return source.hasNext();
+        }
+
+        public Resource next() {
+            Resource candidate = source.next();
+            if (!buffered && previous != null && resourceComparator.compare(previous, candidate) > 0) {
+                LOGGER.warn("[next] children of {} are out of order at {}, sorting the remainder", parent.getPath(),
+                        candidate.getName());
+                List<Resource> remainder = new ArrayList<Resource>();
+                remainder.add(candidate);
+                while (source.hasNext()) {
+                    remainder.add(source.next());
+                }
+                Collections.sort(remainder, resourceComparator);
+                buffered = true;
+                source = remainder.iterator();
+                candidate = source.next();
+            }
+            previous = candidate;
+            return candidate;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
     }
 
+    /**
+     * Iterator which can look ahead at the upcoming elements without consuming them
+     */
+    static class LookaheadIterator implements Iterator<Resource> {
+        final Iterator<Resource> source;
+        final LinkedList<Resource> buffer = new LinkedList<Resource>();
+
+        LookaheadIterator(Iterator<Resource> source) {
+            this.source = source;
+        }
+
+        List<Resource> peek(int count) {
+            while (buffer.size() < count && source.hasNext()) {
+                buffer.add(source.next());
+            }
+            return buffer.size() > count ? buffer.subList(0, count) : buffer;
+        }
+
+        public boolean hasNext() {
+            return !buffer.isEmpty() || source.hasNext();
+        }
+
+        public Resource next() {
+            return buffer.isEmpty() ? source.next() : buffer.removeFirst();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+    }
 }
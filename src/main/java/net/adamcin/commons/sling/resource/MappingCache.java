@@ -0,0 +1,77 @@
+package net.adamcin.commons.sling.resource;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, thread-safe cache of resource resolver mappings with an optional time to live. When full, expired
+ * entries are dropped first, then arbitrary entries until it is three quarters full.
+ */
+class MappingCache {
+    final int maxEntries;
+    final long timeToLiveNanos;
+    final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * @param maxEntries
+     * @param timeToLiveMillis milliseconds before an entry expires, or 0 to keep entries until evicted
+     */
+    MappingCache(int maxEntries, long timeToLiveMillis) {
+        this.maxEntries = maxEntries;
+        this.timeToLiveNanos = timeToLiveMillis > 0L ? TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis) : 0L;
+    }
+
+    String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.isExpired(System.nanoTime())) {
+            entries.remove(key, entry);
+            entry = null;
+        }
+        return entry != null ? entry.value : null;
+    }
+
+    void put(String key, String value) {
+        if (value == null) {
+            return;
+        }
+        if (entries.size() >= maxEntries) {
+            evict();
+        }
+        entries.put(key, new Entry(value, timeToLiveNanos > 0L ? System.nanoTime() + timeToLiveNanos : 0L));
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    private void evict() {
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue().isExpired(now)) {
+                it.remove();
+            }
+        }
+        int target = maxEntries * 3 / 4;
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext() && entries.size() > target; ) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    static class Entry {
+        final String value;
+        final long expiresAt;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0L && now - expiresAt >= 0L;
+        }
+    }
+}
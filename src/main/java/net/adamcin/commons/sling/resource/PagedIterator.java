@@ -0,0 +1,146 @@
+package net.adamcin.commons.sling.resource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Reads another iterator in pages of a fixed size, after skipping an offset and up to a limit. With an executor, the
+ * next page is read in the background while the caller processes the current one. The source is never read further
+ * than the page being prefetched, so a caller can stop early with {@link #close()} without draining it.
+ *
+ * Only one page is read at a time, but it may be read while the caller works with the previous page, so the source
+ * must tolerate being read from another thread when an executor is used.
+ */
+public class PagedIterator<T> implements Iterator<List<T>> {
+
+    final Iterator<T> source;
+    final int fetchSize;
+    final Executor prefetchExecutor;
+    long toSkip;
+    long remaining;
+
+    Future<List<T>> prefetched;
+    List<T> nextPage;
+    boolean exhausted;
+    volatile boolean closed;
+
+    /**
+     * @param source iterator to read
+     * @param offset number of elements to skip
+     * @param limit maximum number of elements to return, or 0 for no limit
+     * @param fetchSize number of elements in each page
+     * @param prefetchExecutor executor for reading ahead, or null to read each page when it is requested
+     */
+    public PagedIterator(final Iterator<T> source, long offset, long limit, int fetchSize, final Executor prefetchExecutor) {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("fetchSize must be positive");
+        }
+        this.source = source;
+        this.fetchSize = fetchSize;
+        this.prefetchExecutor = prefetchExecutor;
+        this.toSkip = Math.max(offset, 0L);
+        this.remaining = limit > 0L ? limit : Long.MAX_VALUE;
+        this.exhausted = source == null;
+        if (!this.exhausted) {
+            prefetch();
+        }
+    }
+
+    public boolean hasNext() {
+        if (this.nextPage == null && !this.exhausted && !this.closed) {
+            List<T> page = this.prefetched != null ? await(this.prefetched) : fetch();
+            this.prefetched = null;
+            if (page.isEmpty()) {
+                this.exhausted = true;
+            } else {
+                this.nextPage = page;
+                if (page.size() < this.fetchSize || this.remaining <= 0L) {
+                    this.exhausted = true;
+                } else {
+                    prefetch();
+                }
+            }
+        }
+        return this.nextPage != null;
+    }
+
+    public List<T> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<T> page = this.nextPage;
+        this.nextPage = null;
+        return page;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * Stops reading. A page already being prefetched is allowed to finish, but is discarded.
+     */
+    public void close() {
+        this.closed = true;
+        this.nextPage = null;
+        if (this.prefetched != null) {
+            this.prefetched.cancel(false);
+            this.prefetched = null;
+        }
+    }
+
+    private void prefetch() {
+        if (this.prefetchExecutor != null) {
+            FutureTask<List<T>> task = new FutureTask<List<T>>(new Callable<List<T>>() {
+                public List<T> call() throws Exception {
+                    return fetch();
+                }
+            });
+            this.prefetched = task;
+            this.prefetchExecutor.execute(task);
+        }
+    }
+
+    private List<T> await(Future<List<T>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new IllegalStateException("Interrupted while waiting for the next page", e);
+        } catch (ExecutionException e) {
+            close();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to read the next page", e.getCause());
+        }
+    }
+
+    /**
+     * Reads the next page. Never runs concurrently with itself, since a page is only prefetched after the previous
+     * one has been taken.
+     */
+    List<T> fetch() {
+        while (this.toSkip > 0L && !this.closed && this.source.hasNext()) {
+            this.source.next();
+            this.toSkip--;
+        }
+
+        int size = (int) Math.min(this.fetchSize, this.remaining);
+        List<T> page = new ArrayList<T>(size);
+        while (page.size() < size && !this.closed && this.source.hasNext()) {
+            page.add(this.source.next());
+        }
+        this.remaining -= page.size();
+        return Collections.unmodifiableList(page);
+    }
+}
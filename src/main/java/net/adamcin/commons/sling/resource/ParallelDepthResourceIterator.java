@@ -0,0 +1,284 @@
+package net.adamcin.commons.sling.resource;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Traverses the same resources as a {@link DepthResourceIterator}, but partitions the tree by the in-bounds children of
+ * the root and traverses the partitions on an executor. Each worker logs in with its own {@link ResourceResolver}, and
+ * the resources it returns stay bound to that resolver until {@link #close()}, which callers must always call, for
+ * instance in a finally block.
+ *
+ * When ordered is true, resources are returned in the same order as a {@link DepthResourceIterator} with the same
+ * comparator; otherwise they are returned as soon as any worker finds them.
+ */
+public class ParallelDepthResourceIterator implements Iterator<Resource> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelDepthResourceIterator.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final Object END = new Object();
+
+    final ResourceResolverFactory resolverFactory;
+    final Map<String, Object> authenticationInfo;
+    final String rootPath;
+    final int returnDepth;
+    final String lowerBound;
+    final String upperBound;
+    final Comparator<Resource> resourceComparator;
+    final boolean ordered;
+
+    final List<String> partitions = new ArrayList<String>();
+    final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+    final AtomicInteger nextPartition = new AtomicInteger();
+    final List<FutureTask<Object>> workers = new ArrayList<FutureTask<Object>>();
+    final List<ResourceResolver> resolvers = Collections.synchronizedList(new ArrayList<ResourceResolver>());
+
+    volatile boolean closed;
+    int currentPartition;
+    Resource nextResource;
+
+    public ParallelDepthResourceIterator(final ResourceResolverFactory resolverFactory, final Map<String, Object> authenticationInfo,
+                                         final String rootPath, int returnDepth, final String lowerBound, final String upperBound,
+                                         final Executor executor, int parallelism, boolean ordered) throws LoginException {
+        this(resolverFactory, authenticationInfo, rootPath, returnDepth, lowerBound, upperBound,
+                DepthResourceIterator.DEFAULT_COMPARATOR, executor, parallelism, ordered, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param resolverFactory factory used to log in a resolver for planning and one for each worker
+     * @param authenticationInfo passed to {@link ResourceResolverFactory#getResourceResolver(java.util.Map)}
+     * @param rootPath path of the root resource
+     * @param returnDepth
+     * @param lowerBound
+     * @param upperBound
+     * @param resourceComparator
+     * @param executor executor for the workers
+     * @param parallelism maximum number of workers
+     * @param ordered true to return resources in the same order as a sequential traversal
+     * @param queueCapacity maximum number of resources buffered for each partition, or for all partitions when
+     *                      ordered is false
+     * @throws LoginException if the planning resolver can't be opened
+     */
+    public ParallelDepthResourceIterator(final ResourceResolverFactory resolverFactory, final Map<String, Object> authenticationInfo,
+                                         final String rootPath, int returnDepth, final String lowerBound, final String upperBound,
+                                         final Comparator<Resource> resourceComparator, final Executor executor,
+                                         int parallelism, boolean ordered, int queueCapacity) throws LoginException {
+        this.resolverFactory = resolverFactory;
+        this.authenticationInfo = authenticationInfo;
+        this.rootPath = rootPath;
+        this.returnDepth = returnDepth;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+        this.resourceComparator = resourceComparator;
+        this.ordered = ordered;
+
+        ResourceResolver planner = login();
+        try {
+            Resource root = planner.getResource(rootPath);
+            if (root != null) {
+                DepthResourceIterator topLevel = new DepthResourceIterator(root, 1, lowerBound, upperBound, resourceComparator);
+                while (topLevel.hasNext()) {
+                    this.partitions.add(topLevel.next().getName());
+                }
+            }
+        } finally {
+            planner.close();
+        }
+
+        BlockingQueue<Object> shared = ordered ? null : new LinkedBlockingQueue<Object>(queueCapacity);
+        for (int i = 0; i < this.partitions.size(); i++) {
+            this.queues.add(ordered ? new LinkedBlockingQueue<Object>(queueCapacity) : shared);
+        }
+
+        int workerCount = Math.min(Math.max(parallelism, 1), this.partitions.size());
+        for (int i = 0; i < workerCount; i++) {
+            FutureTask<Object> worker = new FutureTask<Object>(new Worker(), null);
+            this.workers.add(worker);
+            executor.execute(worker);
+        }
+    }
+
+    public boolean hasNext() {
+        if (this.nextResource == null) {
+            this.nextResource = take();
+        }
+        return this.nextResource != null;
+    }
+
+    public Resource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Resource temp = this.nextResource;
+        this.nextResource = null;
+        return temp;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * Stops the workers and closes their resolvers, which invalidates any resources already returned.
+     */
+    public void close() {
+        this.closed = true;
+        for (FutureTask<Object> worker : this.workers) {
+            worker.cancel(true);
+        }
+        synchronized (this.resolvers) {
+            for (ResourceResolver resolver : this.resolvers) {
+                try {
+                    resolver.close();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("[close] failed to close resolver", e);
+                }
+            }
+            this.resolvers.clear();
+        }
+    }
+
+    /**
+     * Takes the next resource from the queues, in partition order when ordered. In unordered mode every partition
+     * queue is the same shared queue, so counting end markers tells when all partitions are done.
+     */
+    private Resource take() {
+        while (!this.closed && this.currentPartition < this.partitions.size()) {
+            Object item;
+            try {
+                item = this.queues.get(this.currentPartition).take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("Interrupted while waiting for partition traversal", e);
+            }
+
+            if (item == END) {
+                this.queues.set(this.currentPartition, null);
+                this.currentPartition++;
+            } else if (item instanceof Failure) {
+                close();
+                throw new IllegalStateException("Partition traversal failed", ((Failure) item).cause);
+            } else {
+                return (Resource) item;
+            }
+        }
+        return null;
+    }
+
+    ResourceResolver login() throws LoginException {
+        Map<String, Object> authInfo = this.authenticationInfo != null
+                ? new HashMap<String, Object>(this.authenticationInfo) : null;
+        return this.resolverFactory.getResourceResolver(authInfo);
+    }
+
+    String partitionPath(String partition) {
+        return this.rootPath.endsWith("/") ? this.rootPath + partition : this.rootPath + "/" + partition;
+    }
+
+    /**
+     * Claims partitions in order until none are left. Because partitions are claimed in order, the lowest partition
+     * the consumer is waiting on always has a worker, even when every other worker is blocked on a full queue.
+     */
+    class Worker implements Runnable {
+        public void run() {
+            ResourceResolver resolver = null;
+            int partition;
+            while (!closed && (partition = nextPartition.getAndIncrement()) < partitions.size()) {
+                BlockingQueue<Object> queue = queues.get(partition);
+                Throwable failure = null;
+                try {
+                    if (resolver == null) {
+                        resolver = login();
+                        resolvers.add(resolver);
+                        if (closed) {
+                            // close() may have run before the resolver was added, so it would never be closed
+                            if (resolvers.remove(resolver)) {
+                                resolver.close();
+                            }
+                            return;
+                        }
+                    }
+                    traverse(resolver, partitions.get(partition), queue);
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    // the consumer waits on this partition until it gets a marker, whatever went wrong
+                    finish(queue, failure == null ? END : new Failure(failure));
+                }
+
+                if (failure instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } else if (failure != null && (resolver == null || !(failure instanceof Exception))) {
+                    // a failed login would fail the remaining partitions too, and an Error leaves the worker in no
+                    // state to go on. The consumer stops at the failure either way.
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Puts an end or failure marker for a partition, unless the iterator has been closed and nobody is waiting
+         */
+        void finish(BlockingQueue<Object> queue, Object marker) {
+            boolean interrupted = false;
+            try {
+                while (!closed) {
+                    try {
+                        queue.put(marker);
+                        return;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        void traverse(ResourceResolver resolver, String partition, BlockingQueue<Object> queue) throws InterruptedException {
+            Resource partitionRoot = resolver.getResource(partitionPath(partition));
+            if (partitionRoot == null) {
+                LOGGER.debug("[traverse] partition {} disappeared", partition);
+            } else if (returnDepth <= 1) {
+                queue.put(partitionRoot);
+            } else {
+                DepthResourceIterator it = new DepthResourceIterator(partitionRoot, returnDepth - 1, lowerBound, upperBound,
+                        resourceComparator, false, null, 0, 0, partition, null);
+                while (!closed && it.hasNext()) {
+                    queue.put(it.next());
+                }
+            }
+        }
+    }
+
+    static class Failure {
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
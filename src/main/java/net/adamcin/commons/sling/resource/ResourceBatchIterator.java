@@ -0,0 +1,149 @@
+package net.adamcin.commons.sling.resource;
+
+import org.apache.sling.api.resource.Resource;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Groups the resources of another iterator into batches limited by count and by an estimated size in bytes, and
+ * optionally calls back once the consumer is done with each batch, for example to save or refresh a session:
+ * <pre>
+ *     ResourceBatchIterator batches = new DepthResourceIterator(root, 2, null, null).batches(500, callback);
+ *     while (batches.hasNext()) {
+ *         for (Resource resource : batches.next()) {
+ *             ...
+ *         }
+ *     }
+ * </pre>
+ * The callback for a batch runs on the next call to {@link #hasNext()} or {@link #next()}, so it sees the changes
+ * made while processing the batch. A consumer that stops early should call {@link #complete()} to run the callback
+ * for the last batch it took.
+ */
+public class ResourceBatchIterator implements Iterator<List<Resource>> {
+
+    /**
+     * Called after each batch has been processed
+     */
+    public interface Callback {
+        void batchCompleted(List<Resource> batch) throws Exception;
+    }
+
+    /**
+     * Estimates the memory held by a resource, for byte-limited batches
+     */
+    public interface Weigher {
+        long weigh(Resource resource);
+    }
+
+    /**
+     * Rough estimate of a resource and its path string
+     */
+    public static final Weigher DEFAULT_WEIGHER = new Weigher() {
+        public long weigh(Resource resource) {
+            return 64L + 2L * resource.getPath().length();
+        }
+    };
+
+    final Iterator<Resource> resources;
+    final int maxSize;
+    final long maxBytes;
+    final Weigher weigher;
+    final Callback callback;
+
+    List<Resource> pending;
+    Resource carried;
+    long carriedWeight;
+
+    public ResourceBatchIterator(final Iterator<Resource> resources, int maxSize) {
+        this(resources, maxSize, null);
+    }
+
+    public ResourceBatchIterator(final Iterator<Resource> resources, int maxSize, final Callback callback) {
+        this(resources, maxSize, 0L, null, callback);
+    }
+
+    /**
+     * @param resources resources to batch
+     * @param maxSize maximum number of resources in a batch, or 0 for no limit
+     * @param maxBytes maximum estimated size of a batch, or 0 for no limit. A resource which would take a batch over
+     *                 the limit is taken from the iterator but held back for the next batch, and a resource larger
+     *                 than the limit gets a batch of its own.
+     * @param weigher estimates resource sizes for maxBytes, or null for {@link #DEFAULT_WEIGHER}
+     * @param callback called after each batch, or null
+     */
+    public ResourceBatchIterator(final Iterator<Resource> resources, int maxSize, long maxBytes, final Weigher weigher,
+                                 final Callback callback) {
+        if (maxSize <= 0 && maxBytes <= 0L) {
+            throw new IllegalArgumentException("either maxSize or maxBytes must be positive");
+        }
+        this.resources = resources;
+        this.maxSize = maxSize > 0 ? maxSize : Integer.MAX_VALUE;
+        this.maxBytes = maxBytes;
+        this.weigher = weigher != null ? weigher : DEFAULT_WEIGHER;
+        this.callback = callback;
+    }
+
+    public boolean hasNext() {
+        complete();
+        return this.carried != null || this.resources.hasNext();
+    }
+
+    public List<Resource> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        List<Resource> batch = new ArrayList<Resource>(Math.min(this.maxSize, 1024));
+        long bytes = 0L;
+        while (batch.size() < this.maxSize && (this.carried != null || this.resources.hasNext())) {
+            Resource resource = this.carried;
+            long weight = this.carriedWeight;
+            this.carried = null;
+            if (resource == null) {
+                resource = this.resources.next();
+                weight = this.maxBytes > 0L ? this.weigher.weigh(resource) : 0L;
+            }
+            if (this.maxBytes > 0L) {
+                if (!batch.isEmpty() && bytes + weight > this.maxBytes) {
+                    // doesn't fit, so it starts the next batch
+                    this.carried = resource;
+                    this.carriedWeight = weight;
+                    break;
+                }
+                bytes += weight;
+            }
+            batch.add(resource);
+            if (this.maxBytes > 0L && bytes >= this.maxBytes) {
+                break;
+            }
+        }
+
+        this.pending = batch;
+        return batch;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * Runs the callback for the last batch returned, if it hasn't run yet
+     * @throws IllegalStateException if the callback fails. The callback is not retried.
+     */
+    public void complete() {
+        List<Resource> batch = this.pending;
+        this.pending = null;
+        if (batch != null && this.callback != null) {
+            try {
+                this.callback.batchCompleted(batch);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Batch callback failed", e);
+            }
+        }
+    }
+}
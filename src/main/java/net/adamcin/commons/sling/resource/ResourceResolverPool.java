@@ -0,0 +1,310 @@
+package net.adamcin.commons.sling.resource;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of logged-in resource resolvers for background jobs. {@link #borrow()} returns a
+ * {@link ResourceResolverWrapper} whose {@link ResourceResolver#close()} hands the underlying resolver back to the
+ * pool instead of logging it out. Returned resolvers have their JCR session refreshed, discarding unsaved changes,
+ * and resolvers which are no longer live or have been idle longer than the maximum idle time are logged out.
+ *
+ * Idle resolvers are only checked when a resolver is borrowed or returned, so a pool which may go unused for a while
+ * should have {@link #evictIdle()} called periodically, for instance from a scheduled job, to log out the sessions
+ * left over from the last burst.
+ *
+ * Each borrowed wrapper must be closed exactly once, and must not be used after it is closed.
+ */
+public class ResourceResolverPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceResolverPool.class);
+
+    final ResourceResolverFactory resolverFactory;
+    final Map<String, Object> authenticationInfo;
+    final boolean administrative;
+    final int maxSize;
+    final long maxIdleNanos;
+
+    final Semaphore permits;
+    final ConcurrentLinkedQueue<IdleResolver> idle = new ConcurrentLinkedQueue<IdleResolver>();
+    volatile boolean closed;
+
+    final AtomicLong created = new AtomicLong();
+    final AtomicLong destroyed = new AtomicLong();
+    final AtomicLong borrows = new AtomicLong();
+    final AtomicLong borrowWaitNanos = new AtomicLong();
+    final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+
+    /**
+     * @param resolverFactory factory to log in with
+     * @param authenticationInfo passed to the factory for each login
+     * @param administrative true to log in with
+     *                       {@link ResourceResolverFactory#getAdministrativeResourceResolver(java.util.Map)}
+     * @param maxSize maximum number of resolvers logged in at once
+     * @param maxIdleMillis milliseconds an unused resolver is kept before it is logged out, or 0 to keep it
+     */
+    public ResourceResolverPool(final ResourceResolverFactory resolverFactory, final Map<String, Object> authenticationInfo,
+                                boolean administrative, int maxSize, long maxIdleMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.resolverFactory = resolverFactory;
+        this.authenticationInfo = authenticationInfo;
+        this.administrative = administrative;
+        this.maxSize = maxSize;
+        this.maxIdleNanos = maxIdleMillis > 0L ? TimeUnit.MILLISECONDS.toNanos(maxIdleMillis) : 0L;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrows a resolver, waiting as long as necessary for one to be returned when the pool is exhausted
+     * @return a resolver which goes back to the pool when closed
+     * @throws LoginException if the pool has been closed, a new resolver can't be logged in, or the thread is
+     * interrupted while waiting
+     */
+    public ResourceResolver borrow() throws LoginException {
+        return borrow(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Borrows a resolver, waiting up to the timeout for one to be returned when the pool is exhausted
+     * @param timeout
+     * @param unit
+     * @return a resolver which goes back to the pool when closed
+     * @throws LoginException if the pool has been closed, none was available in time, a new resolver can't be
+     * logged in, or the thread is interrupted while waiting
+     */
+    public ResourceResolver borrow(long timeout, TimeUnit unit) throws LoginException {
+        if (this.closed) {
+            throw new LoginException("Resource resolver pool is closed");
+        }
+        evictIdle();
+
+        long start = System.nanoTime();
+        try {
+            if (!this.permits.tryAcquire(timeout, unit)) {
+                throw new LoginException("Timed out waiting for a pooled resource resolver");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoginException("Interrupted while waiting for a pooled resource resolver", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            ResourceResolver resolver = takeIdle();
+            if (resolver == null) {
+                resolver = login();
+                this.created.incrementAndGet();
+            }
+            return new PooledResourceResolver(resolver);
+        } catch (LoginException e) {
+            this.permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Logs out every resolver that has been idle longer than the maximum idle time. This also happens whenever a
+     * resolver is borrowed or returned.
+     */
+    public void evictIdle() {
+        if (this.maxIdleNanos == 0L) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Iterator<IdleResolver> it = this.idle.iterator(); it.hasNext(); ) {
+            IdleResolver candidate = it.next();
+            if (candidate.isExpired(now, this.maxIdleNanos) && this.idle.remove(candidate)) {
+                destroy(candidate.resolver);
+            }
+        }
+    }
+
+    /**
+     * Logs out the idle resolvers. Borrowed resolvers are logged out when they are returned.
+     */
+    public void close() {
+        this.closed = true;
+        IdleResolver candidate;
+        while ((candidate = this.idle.poll()) != null) {
+            destroy(candidate.resolver);
+        }
+    }
+
+    /**
+     * @return number of resolvers currently logged in, both borrowed and idle
+     */
+    public long getPoolSize() {
+        return this.created.get() - this.destroyed.get();
+    }
+
+    public int getIdleCount() {
+        return this.idle.size();
+    }
+
+    public int getActiveCount() {
+        return this.maxSize - this.permits.availablePermits();
+    }
+
+    public long getCreatedCount() {
+        return this.created.get();
+    }
+
+    public long getDestroyedCount() {
+        return this.destroyed.get();
+    }
+
+    public long getBorrowCount() {
+        return this.borrows.get();
+    }
+
+    public double getMeanBorrowWaitMillis() {
+        long n = this.borrows.get();
+        return n == 0L ? 0.0D : this.borrowWaitNanos.get() / 1.0e6D / n;
+    }
+
+    public long getMaxBorrowWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxBorrowWaitNanos.get());
+    }
+
+    private void recordWait(long nanos) {
+        this.borrows.incrementAndGet();
+        this.borrowWaitNanos.addAndGet(nanos);
+        long max = this.maxBorrowWaitNanos.get();
+        while (nanos > max && !this.maxBorrowWaitNanos.compareAndSet(max, nanos)) {
+            max = this.maxBorrowWaitNanos.get();
+        }
+    }
+
+    private ResourceResolver takeIdle() {
+        long now = System.nanoTime();
+        IdleResolver candidate;
+        while ((candidate = this.idle.poll()) != null) {
+            if (candidate.isExpired(now, this.maxIdleNanos) || !candidate.resolver.isLive()) {
+                destroy(candidate.resolver);
+            } else {
+                return candidate.resolver;
+            }
+        }
+        return null;
+    }
+
+    ResourceResolver login() throws LoginException {
+        Map<String, Object> authInfo = this.authenticationInfo != null
+                ? new HashMap<String, Object>(this.authenticationInfo) : null;
+        return this.administrative
+                ? this.resolverFactory.getAdministrativeResourceResolver(authInfo)
+                : this.resolverFactory.getResourceResolver(authInfo);
+    }
+
+    void release(ResourceResolver resolver) {
+        try {
+            if (this.closed || !resolver.isLive() || !refresh(resolver)) {
+                destroy(resolver);
+            } else {
+                IdleResolver returned = new IdleResolver(resolver, System.nanoTime());
+                this.idle.offer(returned);
+                // the pool may have been closed after the check above, and close() may have missed it
+                if (this.closed && this.idle.remove(returned)) {
+                    destroy(resolver);
+                }
+            }
+        } finally {
+            this.permits.release();
+        }
+        evictIdle();
+    }
+
+    private boolean refresh(ResourceResolver resolver) {
+        Session session = resolver.adaptTo(Session.class);
+        if (session != null) {
+            try {
+                session.refresh(false);
+            } catch (RepositoryException e) {
+                LOGGER.warn("[refresh] failed to refresh pooled resolver, logging it out", e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void destroy(ResourceResolver resolver) {
+        this.destroyed.incrementAndGet();
+        try {
+            resolver.close();
+        } catch (RuntimeException e) {
+            LOGGER.warn("[destroy] failed to close pooled resolver", e);
+        }
+    }
+
+    static class IdleResolver {
+        final ResourceResolver resolver;
+        final long idleSince;
+
+        IdleResolver(ResourceResolver resolver, long idleSince) {
+            this.resolver = resolver;
+            this.idleSince = idleSince;
+        }
+
+        boolean isExpired(long now, long maxIdleNanos) {
+            return maxIdleNanos > 0L && now - this.idleSince >= maxIdleNanos;
+        }
+    }
+
+    /**
+     * Wrapper handed to borrowers. Closing it returns the underlying resolver to the pool, after which every call
+     * but close() fails.
+     */
+    class PooledResourceResolver extends ResourceResolverWrapper {
+        final AtomicBoolean returned = new AtomicBoolean();
+
+        PooledResourceResolver(ResourceResolver wrappedResolver) {
+            super(wrappedResolver);
+        }
+
+        @Override
+        public ResourceResolver getResourceResolver() {
+            if (this.returned.get()) {
+                throw new IllegalStateException("Resource resolver has been returned to the pool");
+            }
+            return super.getResourceResolver();
+        }
+
+        @Override
+        public boolean isLive() {
+            return !this.returned.get() && super.isLive();
+        }
+
+        @Override
+        public void close() {
+            if (this.returned.compareAndSet(false, true)) {
+                release(this.wrappedResolver);
+            }
+        }
+
+        /**
+         * Clones are not pooled, so they are plain wrappers which log out when closed
+         */
+        @Override
+        protected ResourceResolverWrapper newClone(ResourceResolver clonedResolver) throws LoginException {
+            return new ResourceResolverWrapper(clonedResolver);
+        }
+    }
+}
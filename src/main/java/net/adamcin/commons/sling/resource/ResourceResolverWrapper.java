@@ -9,13 +9,19 @@ import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletRequest;
 import java.lang.reflect.Constructor;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 public class ResourceResolverWrapper extends SlingAdaptable implements ResourceResolver {
     private static final Logger LOGGER = LoggerFactory.getLogger(ResourceResolverWrapper.class);
 
     protected ResourceResolver wrappedResolver;
+
+    private volatile MappingCache mappingCache;
+    volatile Constructor<? extends ResourceResolverWrapper> cloneConstructor;
     
     public ResourceResolverWrapper(final ResourceResolver wrappedResolver) {
         this.wrappedResolver = wrappedResolver;
@@ -49,11 +55,81 @@ public class ResourceResolverWrapper extends SlingAdaptable implements ResourceR
     }
 
     public String map(String resourcePath) {
-        return getResourceResolver().map(resourcePath);
+        MappingCache cache = this.mappingCache;
+        if (cache == null) {
+            return getResourceResolver().map(resourcePath);
+        }
+        String mapped = cache.get(resourcePath);
+        if (mapped == null) {
+            mapped = getResourceResolver().map(resourcePath);
+            cache.put(resourcePath, mapped);
+        }
+        return mapped;
     }
 
+    /**
+     * When the mapping cache is enabled, mappings for a request are cached by the request's scheme, server name,
+     * server port and context path, which are the parts of the request that resource resolver mappings depend on.
+     */
     public String map(HttpServletRequest request, String resourcePath) {
-        return getResourceResolver().map(request, resourcePath);
+        MappingCache cache = this.mappingCache;
+        if (cache == null || request == null) {
+            return getResourceResolver().map(request, resourcePath);
+        }
+        String key = request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort()
+                + request.getContextPath() + "\n" + resourcePath;
+        String mapped = cache.get(key);
+        if (mapped == null) {
+            mapped = getResourceResolver().map(request, resourcePath);
+            cache.put(key, mapped);
+        }
+        return mapped;
+    }
+
+    /**
+     * Maps each distinct path once
+     * @param resourcePaths
+     * @return the mapped paths, keyed by resource path in iteration order
+     */
+    public Map<String, String> map(Collection<String> resourcePaths) {
+        return map(null, resourcePaths);
+    }
+
+    /**
+     * Maps each distinct path once for the request
+     * @param request
+     * @param resourcePaths
+     * @return the mapped paths, keyed by resource path in iteration order
+     */
+    public Map<String, String> map(HttpServletRequest request, Collection<String> resourcePaths) {
+        Map<String, String> mapped = new LinkedHashMap<String, String>();
+        for (String resourcePath : resourcePaths) {
+            if (!mapped.containsKey(resourcePath)) {
+                mapped.put(resourcePath, request != null ? map(request, resourcePath) : map(resourcePath));
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Enables or resizes the cache for {@link #map(String)} and {@link #map(HttpServletRequest, String)}, replacing
+     * any mappings already cached. The cache is thread-safe.
+     * @param maxEntries maximum number of cached mappings, or 0 to disable the cache
+     * @param timeToLiveMillis milliseconds before a cached mapping expires, or 0 to keep it until evicted or
+     *                         invalidated
+     */
+    public void setMappingCache(int maxEntries, long timeToLiveMillis) {
+        this.mappingCache = maxEntries > 0 ? new MappingCache(maxEntries, timeToLiveMillis) : null;
+    }
+
+    /**
+     * Drops all cached mappings, for example after the mapping configuration has changed
+     */
+    public void invalidateMappings() {
+        MappingCache cache = this.mappingCache;
+        if (cache != null) {
+            cache.clear();
+        }
     }
 
     public Resource getResource(String path) {
@@ -81,22 +157,77 @@ public class ResourceResolverWrapper extends SlingAdaptable implements ResourceR
         return getResourceResolver().queryResources(query, language);
     }
 
+    /**
+     * Executes the query and returns its results in pages, reading the next page in the background when an executor
+     * is given. Call {@link PagedIterator#close()} to stop before the results are exhausted.
+     * @param query
+     * @param language
+     * @param offset number of results to skip
+     * @param limit maximum number of results, or 0 for all of them
+     * @param fetchSize number of results in each page
+     * @param prefetchExecutor executor for reading the next page, or null to read pages on demand
+     * @return the pages of results
+     */
+    public PagedIterator<Resource> findResources(String query, String language, long offset, long limit,
+                                                 int fetchSize, Executor prefetchExecutor) {
+        return new PagedIterator<Resource>(findResources(query, language), offset, limit, fetchSize, prefetchExecutor);
+    }
+
+    /**
+     * Paged version of {@link #queryResources(String, String)}, like
+     * {@link #findResources(String, String, long, long, int, java.util.concurrent.Executor)}
+     */
+    public PagedIterator<Map<String, Object>> queryResources(String query, String language, long offset, long limit,
+                                                             int fetchSize, Executor prefetchExecutor) {
+        return new PagedIterator<Map<String, Object>>(queryResources(query, language), offset, limit, fetchSize,
+                prefetchExecutor);
+    }
+
     /**
      * Returns the <code>ResourceResolver</code> obtained by calling
      * <code>clone</code> on the {@link #getResourceResolver() wrapped
-     * resource resolver} and wrapping it in a new instance of the used
-     * <code>ResourceResolverWrapper</code>.
+     * resource resolver} and wrapping it with {@link #newClone(ResourceResolver)}.
      *
-     * This method assumes a constructor accepting a single
-     * <code>ResourceResolver</code> argument. So this needs to be
-     * overwritten if a different signature is expected.
+     * When the clone keeps the same credentials, it shares this wrapper's mapping
+     * cache, if enabled.
      */
     public ResourceResolver clone(Map<String, Object> authenticationInfo) throws LoginException {
         final ResourceResolver clone = getResourceResolver().clone(authenticationInfo);
+        final ResourceResolverWrapper wrapper;
         try {
-            final Constructor<? extends ResourceResolverWrapper> constructor =
-                    this.getClass().getConstructor(ResourceResolver.class);
-            return constructor.newInstance(clone);
+            wrapper = newClone(clone);
+        } catch (LoginException e) {
+            clone.close();
+            throw e;
+        } catch (RuntimeException e) {
+            clone.close();
+            throw e;
+        }
+        if (authenticationInfo == null) {
+            wrapper.mappingCache = this.mappingCache;
+        }
+        return wrapper;
+    }
+
+    /**
+     * Wraps a cloned resolver in a new instance of this class. The default
+     * implementation assumes a constructor accepting a single
+     * <code>ResourceResolver</code> argument, which is looked up once and
+     * handed on to the clones. It is not cached statically, so that subclasses
+     * from other bundles don't pin their classloaders. Override this to avoid
+     * reflection, to call a different constructor, or to pass configuration
+     * and shareable caches on to the clone.
+     */
+    protected ResourceResolverWrapper newClone(ResourceResolver clonedResolver) throws LoginException {
+        try {
+            Constructor<? extends ResourceResolverWrapper> constructor = this.cloneConstructor;
+            if (constructor == null) {
+                constructor = this.getClass().getConstructor(ResourceResolver.class);
+                this.cloneConstructor = constructor;
+            }
+            ResourceResolverWrapper wrapper = constructor.newInstance(clonedResolver);
+            wrapper.cloneConstructor = constructor;
+            return wrapper;
         } catch (Exception e) {
             throw new LoginException("Failed to create cloned wrapper.", e);
         }
@@ -124,12 +255,21 @@ public class ResourceResolverWrapper extends SlingAdaptable implements ResourceR
 
     protected Resource wrap(Resource resource) {
         if (resource != null && getResourceResolver() == resource.getResourceResolver()) {
-            return new ResolverOverridingResourceWrapper(resource);
+            return newResourceWrapper(resource);
         } else {
             return resource;
         }
     }
 
+    /**
+     * Creates the wrapper which makes a resource of the wrapped resolver report this resolver as its own. A new
+     * wrapper is created for every lookup, since the wrapped resolver returns a new resource object each time and a
+     * wrapper can't be shared between them without also sharing their metadata.
+     */
+    Resource newResourceWrapper(Resource resource) {
+        return new ResolverOverridingResourceWrapper(resource);
+    }
+
     protected Iterator<Resource> wrap(Iterator<Resource> resources) {
         if (resources != null) {
             return new ResolverOverridingResourceIterator(resources);
@@ -0,0 +1,74 @@
+package net.adamcin.commons.sling.file;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertEquals;
+
+public class Murmur3DigestTest {
+
+    /**
+     * Published MurmurHash3_x64_128 vectors for seed 0, as h1 then h2 in little-endian order like the reference
+     * implementation writes them. "hell" ends with a tail shorter than 8 bytes, and both sentences end with two full
+     * blocks followed by an 11 byte tail.
+     */
+    private static final String[][] VECTORS = {
+            { "", "00000000000000000000000000000000" },
+            { "hell", "67f8103e694299624753ebba820bdb92" },
+            { "The quick brown fox jumps over the lazy dog", "6c1b07bc7bbc4be347939ac4a93c437a" },
+            { "The quick brown fox jumps over the lazy cog", "9a2685ff70a98c653e5c8ea6eae3fe43" }
+    };
+
+    @Test
+    public void testKnownAnswers() throws Exception {
+        MessageDigest digest = new Murmur3Digest();
+        for (String[] vector : VECTORS) {
+            assertEquals("digest of \"" + vector[0] + "\"", vector[1], hex(digest.digest(bytes(vector[0]))));
+        }
+    }
+
+    @Test
+    public void testStreamingUpdates() throws Exception {
+        for (String[] vector : VECTORS) {
+            byte[] input = bytes(vector[0]);
+
+            MessageDigest byByte = new Murmur3Digest();
+            for (byte b : input) {
+                byByte.update(b);
+            }
+            assertEquals("byte at a time \"" + vector[0] + "\"", vector[1], hex(byByte.digest()));
+
+            // chunks which straddle the 16 byte blocks
+            MessageDigest chunked = new Murmur3Digest();
+            for (int offset = 0; offset < input.length; offset += 7) {
+                chunked.update(input, offset, Math.min(7, input.length - offset));
+            }
+            assertEquals("7 byte chunks \"" + vector[0] + "\"", vector[1], hex(chunked.digest()));
+        }
+    }
+
+    @Test
+    public void testClone() throws Exception {
+        byte[] input = bytes(VECTORS[2][0]);
+        MessageDigest digest = new Murmur3Digest();
+        digest.update(input, 0, 20);
+        MessageDigest copy = (MessageDigest) digest.clone();
+        digest.update(bytes("unrelated"));
+        copy.update(input, 20, input.length - 20);
+        assertEquals("clone should continue from the same state", VECTORS[2][1], hex(copy.digest()));
+    }
+
+    private static byte[] bytes(String text) throws UnsupportedEncodingException {
+        return text.getBytes("UTF-8");
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
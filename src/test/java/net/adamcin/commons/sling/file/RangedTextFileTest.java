@@ -0,0 +1,738 @@
+package net.adamcin.commons.sling.file;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.TransientRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RangedTextFileTest {
+    private static final String ENCODING = "UTF-8";
+
+    private static final String FEED =
+            "B001 second category, first item\n" +
+            "A001 first category, first item\n" +
+            "B002 second category, second item\n" +
+            "A001 first category, second line\n" +
+            "C001 third category, only item\n" +
+            "A002 first category, second item\n" +
+            "B010 second category, tenth item\n";
+
+    private File tempDir;
+    private RangedTextFile textFile;
+
+    @Before
+    public void setUp() throws IOException {
+        this.tempDir = File.createTempFile(getClass().getSimpleName(), "");
+        this.tempDir.delete();
+        this.tempDir.mkdirs();
+        this.textFile = RangedTextFile.createFromStream(
+                new ByteArrayInputStream(FEED.getBytes(ENCODING)), ENCODING, 4, true, this.tempDir);
+    }
+
+    @After
+    public void tearDown() {
+        if (this.textFile != null) {
+            this.textFile.close();
+        }
+        if (this.tempDir != null) {
+            File[] children = this.tempDir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    child.delete();
+                }
+            }
+            this.tempDir.delete();
+        }
+    }
+
+    @Test
+    public void testGetRange() {
+        assertEquals("size should be 6", 6, textFile.size());
+        assertEquals("A001 should contain both lines",
+                "A001 first category, first item\nA001 first category, second line\n", textFile.getRange("A001"));
+        assertEquals("missing range should be null", null, textFile.getRange("Z999"));
+    }
+
+    @Test
+    public void testGetRangesBetween() {
+        assertEquals("inclusive bounds", ids("A002", "B001", "B002"), rangeIds(textFile.getRanges("A002", "B002")));
+        assertEquals("bounds need not exist", ids("B001", "B002", "B010"), rangeIds(textFile.getRanges("A003", "B999")));
+        assertEquals("null bounds are open", ids("A001", "A002", "B001", "B002", "B010", "C001"),
+                rangeIds(textFile.getRanges(null, null)));
+        assertEquals("empty interval", ids(), rangeIds(textFile.getRanges("B999", "B000")));
+    }
+
+    @Test
+    public void testGetRangesWithPrefix() {
+        assertEquals("B prefix", ids("B001", "B002", "B010"), rangeIds(textFile.getRangesWithPrefix("B")));
+        assertEquals("B0 prefix", ids("B001", "B002"), rangeIds(textFile.getRangesWithPrefix("B00")));
+        assertEquals("no match", ids(), rangeIds(textFile.getRangesWithPrefix("D")));
+
+        Iterator<Map.Entry<String, String>> it = textFile.getRangesWithPrefix("C");
+        Map.Entry<String, String> entry = it.next();
+        assertEquals("C001 text", "C001 third category, only item\n", entry.getValue());
+        assertFalse("only one C range", it.hasNext());
+    }
+
+    @Test
+    public void testGetRangesBatch() {
+        Map<String, String> batch = textFile.getRanges(ids("C001", "A001", "Z999", "B002", "A001"));
+        assertEquals("missing and duplicate ids are dropped", ids("A001", "B002", "C001"),
+                new ArrayList<String>(batch.keySet()));
+        for (Map.Entry<String, String> entry : batch.entrySet()) {
+            assertEquals("text should match getRange", textFile.getRange(entry.getKey()), entry.getValue());
+        }
+    }
+
+    @Test
+    public void testGetRangesBatchSkipsOversizedRanges() throws IOException {
+        File dataFile = new File(this.tempDir, "oversized.txt");
+        FileUtils.writeStringToFile(dataFile, "A1\nB1\nC1\n", ENCODING);
+        HashMap<String, RangedTextFile.TextRange> ranges = new HashMap<String, RangedTextFile.TextRange>();
+        ranges.put("A", new RangedTextFile.TextRange("A", 0L, 3L));
+        ranges.put("B", new RangedTextFile.TextRange("B", 3L, 3L));
+        ranges.put("C", new RangedTextFile.TextRange("C", 6L, 3L));
+        // only the index claims it is this long, so it must never be read
+        ranges.put("M", new RangedTextFile.TextRange("M", 4L, RangedTextFile.MAX_MATERIALIZED_RANGE + 1L));
+
+        RangedTextFile oversized = new RangedTextFile(dataFile, ranges, new byte[0], ENCODING, 1);
+        try {
+            Map<String, String> batch = oversized.getRanges(ids("C", "M", "A", "B"));
+            assertNotNull("an oversized range should not fail the batch", batch);
+            assertEquals("the oversized range should be left out", ids("A", "B", "C"),
+                    new ArrayList<String>(batch.keySet()));
+            assertEquals("A text", "A1\n", batch.get("A"));
+            assertEquals("C text", "C1\n", batch.get("C"));
+            assertEquals("the oversized range should still report its length",
+                    RangedTextFile.MAX_MATERIALIZED_RANGE + 1L, oversized.getRangeLength("M"));
+        } finally {
+            oversized.close();
+        }
+    }
+
+    @Test
+    public void testRangeCache() {
+        assertEquals("cache disabled by default", null, textFile.getRangeCache());
+        textFile.setRangeCacheSize(1024 * 1024);
+
+        String first = textFile.getRange("B002");
+        assertEquals("first read should be the same text", first, textFile.getRange("B002"));
+        textFile.getRanges(ids("B002", "C001"));
+
+        RangeCache cache = textFile.getRangeCache();
+        assertEquals("hits", 2L, cache.getHitCount());
+        assertEquals("misses", 2L, cache.getMissCount());
+        assertEquals("cached entries", 2, cache.size());
+
+        textFile.close();
+        assertEquals("cache dropped on close", null, textFile.getRangeCache());
+    }
+
+    @Test
+    public void testRangeCacheEviction() {
+        RangeCache cache = new RangeCache(RangeCache.estimateSize("A001", "0123456789") * 2, 1);
+        cache.put("A001", "0123456789");
+        cache.put("A002", "0123456789");
+        cache.get("A001");
+        cache.put("A003", "0123456789");
+        assertEquals("one eviction", 1L, cache.getEvictionCount());
+        assertEquals("least recently used entry evicted", null, cache.get("A002"));
+        assertEquals("recently used entry kept", "0123456789", cache.get("A001"));
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        RangedTextFile compressed = RangedTextFile.createFromStream(
+                new ByteArrayInputStream(FEED.getBytes(ENCODING)), ENCODING, 4, true, this.tempDir, 16);
+        try {
+            assertTrue("should be compressed", compressed.isCompressed());
+            assertTrue("digests should match", compressed.isDigestEqual(textFile));
+            Iterator<Map.Entry<String, String>> it = textFile.getRanges(null, null);
+            while (it.hasNext()) {
+                Map.Entry<String, String> entry = it.next();
+                assertEquals("compressed range should match", entry.getValue(), compressed.getRange(entry.getKey()));
+            }
+            assertEquals("prefix query should match", rangeIds(textFile.getRangesWithPrefix("B")),
+                    rangeIds(compressed.getRangesWithPrefix("B")));
+            assertEquals("batch should match", textFile.getRanges(ids("A002", "C001")),
+                    compressed.getRanges(ids("A002", "C001")));
+        } finally {
+            compressed.close();
+        }
+    }
+
+    @Test
+    public void testDiffRangesAcrossDigestAlgorithms() throws IOException {
+        String changedFeed = FEED.replace("C001 third category, only item", "C001 third category, changed item")
+                .replace("B010 second category, tenth item\n", "") + "D001 fourth category\n";
+        RangedTextFile legacy = RangedTextFile.createFromStream(
+                new ByteArrayInputStream(changedFeed.getBytes(ENCODING)), ENCODING, 4, true, this.tempDir, 0,
+                RangedTextFile.DIGEST_SHA1);
+        try {
+            assertEquals("default algorithm", RangedTextFile.DEFAULT_DIGEST_ALGORITHM, textFile.getDigestAlgorithm());
+            assertEquals("legacy algorithm", RangedTextFile.DIGEST_SHA1, legacy.getDigestAlgorithm());
+
+            Map<String, RangedTextFile.RangeDiffInfoType> diff = RangedTextFile.diffRanges(textFile, legacy);
+            assertEquals("diff keys", ids("B010", "C001", "D001"), new ArrayList<String>(diff.keySet()));
+            assertEquals("changed", RangedTextFile.RangeDiffInfoType.CHANGED, diff.get("C001"));
+            assertEquals("removed", RangedTextFile.RangeDiffInfoType.REMOVED, diff.get("B010"));
+            assertEquals("added", RangedTextFile.RangeDiffInfoType.ADDED, diff.get("D001"));
+        } finally {
+            legacy.close();
+        }
+    }
+
+    @Test
+    public void testOpenRange() throws IOException {
+        String expected = textFile.getRange("B002");
+        assertEquals("range length", expected.getBytes(ENCODING).length, textFile.getRangeLength("B002"));
+        assertEquals("missing range length", -1L, textFile.getRangeLength("Z999"));
+
+        InputStream stream = textFile.openRange("B002");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[7];
+            int read;
+            while ((read = stream.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            assertEquals("streamed range should match", expected, new String(out.toByteArray(), ENCODING));
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testMappedRangeIndex() throws IOException {
+        HashMap<String, RangedTextFile.TextRange> ranges = new HashMap<String, RangedTextFile.TextRange>();
+        String[] rangeIds = { "B2", "A", "B10", "\u00e9t\u00e9", "B1" };
+        for (int i = 0; i < rangeIds.length; i++) {
+            RangedTextFile.TextRange range = new RangedTextFile.TextRange(rangeIds[i], i * 100L, 5000000000L + i);
+            range.setRangeDigest(new byte[]{ (byte) i, 1, 2 });
+            ranges.put(rangeIds[i], range);
+        }
+        HeapRangeIndex heapIndex = new HeapRangeIndex(ranges);
+
+        File indexFile = new File(this.tempDir, "index.idx");
+        OutputStream out = new FileOutputStream(indexFile);
+        try {
+            heapIndex.writeColumnar(out);
+        } finally {
+            out.close();
+        }
+
+        assertTrue("should be columnar", MappedRangeIndex.isColumnar(indexFile));
+        MappedRangeIndex mappedIndex = MappedRangeIndex.open(indexFile);
+        try {
+            assertEquals("size", heapIndex.size(), mappedIndex.size());
+            for (int i = 0; i < heapIndex.size(); i++) {
+                RangedTextFile.TextRange expected = heapIndex.get(i);
+                RangedTextFile.TextRange actual = mappedIndex.get(expected.getRangeId());
+                assertEquals("rangeId order", expected.getRangeId(), mappedIndex.getRangeId(i));
+                assertEquals("offset", expected.getOffset(), actual.getOffset());
+                assertEquals("length", expected.getLength(), actual.getLength());
+                assertArrayEquals("digest", expected.getRangeDigest(), actual.getRangeDigest());
+            }
+            assertFalse("missing id", mappedIndex.contains("B"));
+            assertEquals("lower bound", 1, mappedIndex.lowerIndex("B"));
+            assertEquals("upper bound", 4, mappedIndex.upperIndex("B2"));
+        } finally {
+            mappedIndex.close();
+        }
+        assertFalse("index file deleted on close", indexFile.exists());
+    }
+
+    @Test
+    public void testSaveAndLoadFromNode() throws Exception {
+        File repositoryDir = new File(this.tempDir.getParentFile(), this.tempDir.getName() + "-repository");
+        TransientRepository repository = new TransientRepository(repositoryDir);
+        try {
+            Session session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+            try {
+                Node columnar = session.getRootNode().addNode("columnar", "nt:unstructured");
+                textFile.saveToNode(columnar);
+                assertLoadedFromNode(columnar);
+
+                // rewrite the index in the serialized HashMap form persisted before the columnar index
+                Node legacy = session.getRootNode().addNode("legacy", "nt:unstructured");
+                textFile.saveToNode(legacy);
+                byte[] legacyIndex = toLegacyIndex(legacy.getProperty(RangedTextFile.PN_INDEX).getBinary());
+                legacy.setProperty(RangedTextFile.PN_INDEX,
+                        session.getValueFactory().createBinary(new ByteArrayInputStream(legacyIndex)));
+                session.save();
+                assertLoadedFromNode(legacy);
+            } finally {
+                session.logout();
+            }
+        } finally {
+            repository.shutdown();
+            FileUtils.deleteQuietly(repositoryDir);
+        }
+    }
+
+    private void assertLoadedFromNode(Node node) throws RepositoryException {
+        RangedTextFile loaded = RangedTextFile.loadFromNode(node, this.tempDir);
+        assertNotNull("should load from " + node.getPath(), loaded);
+        try {
+            assertEquals("size", textFile.size(), loaded.size());
+            Iterator<Map.Entry<String, String>> ranges = textFile.getRanges(null, null);
+            while (ranges.hasNext()) {
+                Map.Entry<String, String> range = ranges.next();
+                assertEquals("range " + range.getKey(), range.getValue(), loaded.getRange(range.getKey()));
+            }
+            assertTrue("same digest", loaded.isDigestEqual(textFile));
+        } finally {
+            loaded.close();
+        }
+    }
+
+    private byte[] toLegacyIndex(Binary columnarIndex) throws Exception {
+        File indexFile = new File(this.tempDir, "columnar.idx");
+        InputStream in = columnarIndex.getStream();
+        OutputStream out = new FileOutputStream(indexFile);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            out.close();
+            in.close();
+        }
+        assertTrue("saved index should be columnar", MappedRangeIndex.isColumnar(indexFile));
+
+        HashMap<String, RangedTextFile.TextRange> ranges = new HashMap<String, RangedTextFile.TextRange>();
+        MappedRangeIndex mappedIndex = MappedRangeIndex.open(indexFile);
+        try {
+            for (int i = 0; i < mappedIndex.size(); i++) {
+                RangedTextFile.TextRange range = mappedIndex.get(i);
+                ranges.put(range.getRangeId(), range);
+            }
+        } finally {
+            mappedIndex.close();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(ranges);
+        oos.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testCreateFromStreamAsync() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            BuildMonitor monitor = new BuildMonitor();
+            Future<RangedTextFile> future = RangedTextFile.createFromStreamAsync(
+                    new ByteArrayInputStream(FEED.getBytes(ENCODING)), ENCODING, 4, true, this.tempDir, 0,
+                    RangedTextFile.DEFAULT_DIGEST_ALGORITHM, monitor, executor);
+            RangedTextFile asyncFile = future.get();
+            try {
+                assertEquals("phase", BuildMonitor.Phase.DONE, monitor.getPhase());
+                assertEquals("bytes read", FEED.getBytes(ENCODING).length, monitor.getBytesRead());
+                assertEquals("ranges indexed", 6, monitor.getRangesIndexed());
+                assertEquals("ranges digested", 6, monitor.getRangesDigested());
+                assertEquals("merge percent", 100, monitor.getMergePercent());
+                assertTrue("same digest", asyncFile.isDigestEqual(textFile));
+            } finally {
+                asyncFile.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancelledBuildDeletesTempFiles() throws Exception {
+        final File buildDir = new File(this.tempDir, "cancelled");
+        buildDir.mkdirs();
+        final BuildMonitor monitor = new BuildMonitor();
+
+        // cancels the build as soon as the first chunk has been read
+        InputStream stream = new ByteArrayInputStream(FEED.getBytes(ENCODING)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                monitor.cancel();
+                return super.read(b, off, len);
+            }
+        };
+
+        Future<RangedTextFile> future = RangedTextFile.createFromStreamAsync(stream, ENCODING, 4, true, buildDir, 0,
+                RangedTextFile.DEFAULT_DIGEST_ALGORITHM, monitor, null);
+        try {
+            future.get();
+            fail("build should have been cancelled");
+        } catch (ExecutionException e) {
+            assertTrue("cause should be InterruptedIOException", e.getCause() instanceof InterruptedIOException);
+        }
+        assertEquals("phase", BuildMonitor.Phase.CANCELLED, monitor.getPhase());
+        assertEquals("temp files should be deleted", 0, buildDir.listFiles().length);
+        buildDir.delete();
+    }
+
+    @Test
+    public void testBuildCancelledAfterCompletionIsClosed() throws Exception {
+        final File buildDir = new File(this.tempDir, "late");
+        buildDir.mkdirs();
+        final BuildMonitor monitor = new BuildMonitor();
+        final InputStream stream = new ByteArrayInputStream(FEED.getBytes(ENCODING));
+        final Future<?>[] holder = new Future<?>[1];
+
+        // cancels the future after the build has finished but before its result is stored
+        RangedTextFile.BuildFuture future = new RangedTextFile.BuildFuture(new Callable<RangedTextFile>() {
+            public RangedTextFile call() throws Exception {
+                RangedTextFile built = RangedTextFile.createFromStream(stream, ENCODING, 4, true, buildDir, 0,
+                        RangedTextFile.DEFAULT_DIGEST_ALGORITHM, monitor);
+                holder[0].cancel(false);
+                return built;
+            }
+        }, stream, monitor);
+        holder[0] = future;
+        future.run();
+
+        assertTrue("future should be cancelled", future.isCancelled());
+        assertEquals("phase", BuildMonitor.Phase.CANCELLED, monitor.getPhase());
+        assertEquals("temp files should be deleted", 0, buildDir.listFiles().length);
+        buildDir.delete();
+    }
+
+    @Test
+    public void testJmxFileMetrics() throws Exception {
+        JmxFileMetrics metrics = new JmxFileMetrics();
+        RangedTextFile measured = RangedTextFile.createFromStream(
+                new ByteArrayInputStream(FEED.getBytes(ENCODING)), ENCODING, 4, true, this.tempDir, 0,
+                RangedTextFile.DEFAULT_DIGEST_ALGORITHM, new BuildMonitor(metrics));
+        try {
+            assertEquals("runs written", 1, metrics.getRunsWritten());
+            assertEquals("lines in runs", 7, metrics.getLinesInRuns());
+            assertEquals("merge fan-in", 1, metrics.getMaxMergeFanIn());
+            assertEquals("ranges indexed", 6, metrics.getRangesIndexed());
+            assertTrue("bytes read", metrics.getBytesRead() >= FEED.getBytes(ENCODING).length);
+            assertTrue("bytes written", metrics.getBytesWritten() >= FEED.getBytes(ENCODING).length);
+
+            measured.setMetrics(metrics);
+            measured.setRangeCacheSize(1024L * 1024L);
+            measured.getRange("A001");
+            measured.getRange("A001");
+            measured.getRange("Z999");
+            assertEquals("lookups", 3, metrics.getRangeLookups());
+            assertEquals("lookup misses", 1, metrics.getRangeLookupMisses());
+            assertEquals("cache hits", 1, metrics.getRangeCacheHits());
+            assertEquals("cache misses", 2, metrics.getRangeCacheMisses());
+
+            long histogramTotal = 0L;
+            for (long bucket : metrics.getRangeLookupHistogram()) {
+                histogramTotal += bucket;
+            }
+            assertEquals("histogram total", 3, histogramTotal);
+            assertTrue("p99 bounds max", metrics.getRangeLookupP99Micros() <= Math.max(1L, metrics.getRangeLookupMaxMicros()));
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JmxFileMetrics.DEFAULT_OBJECT_NAME + ",name=" + getClass().getSimpleName());
+            metrics.register(server, name);
+            try {
+                assertEquals("attribute via JMX", 3L, server.getAttribute(name, "RangeLookups"));
+            } finally {
+                metrics.unregister();
+            }
+            assertFalse("unregistered", server.isRegistered(name));
+
+            // A001 is cached, B002 is read, and Z999 is not in the index
+            measured.getRanges(ids("A001", "B002", "Z999", "B002"));
+            assertEquals("batched lookups", 6, metrics.getRangeLookups());
+            assertEquals("batched lookup misses", 2, metrics.getRangeLookupMisses());
+            assertEquals("batched cache hits", 2, metrics.getRangeCacheHits());
+            assertEquals("batched cache misses", 3, metrics.getRangeCacheMisses());
+
+            assertEquals("iterated ranges", ids("B001", "B002", "B010"), rangeIds(measured.getRangesWithPrefix("B")));
+            assertEquals("iterated lookups", 9, metrics.getRangeLookups());
+            assertEquals("iterated lookup misses", 2, metrics.getRangeLookupMisses());
+            assertEquals("iterators should not use the cache", 2, metrics.getRangeCacheHits());
+            assertEquals("iterators should not use the cache", 3, metrics.getRangeCacheMisses());
+        } finally {
+            measured.close();
+        }
+    }
+
+    @Test
+    public void testShortLines() throws IOException {
+        // shorter than the maximum encoded width of the rangeId
+        RangedTextFile shortLines = RangedTextFile.createFromStream(
+                new ByteArrayInputStream("B001 b\nA001 a\nA001 c\nB\n".getBytes(ENCODING)), ENCODING, 4, true,
+                this.tempDir);
+        try {
+            assertEquals("size", 3, shortLines.size());
+            assertEquals("A001", "A001 a\nA001 c\n", shortLines.getRange("A001"));
+            assertEquals("B001", "B001 b\n", shortLines.getRange("B001"));
+            assertEquals("short key", "B\n", shortLines.getRange("B"));
+        } finally {
+            shortLines.close();
+        }
+    }
+
+    @Test
+    public void testLengthPrefixedRecords() throws IOException {
+        byte[][] payloads = {
+                "k2\u0000\n\r\u00ff".getBytes("ISO-8859-1"),
+                "k1\u0000first".getBytes("ISO-8859-1"),
+                "k1\u0000\nsecond\n".getBytes("ISO-8859-1")
+        };
+        ByteArrayOutputStream feed = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(feed);
+        for (byte[] payload : payloads) {
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        out.close();
+
+        RangedTextFile records = RangedTextFile.createFromStream(new ByteArrayInputStream(feed.toByteArray()),
+                ENCODING, Records.lengthPrefixed(), Records.field((byte) 0, 0), true, this.tempDir, 0,
+                RangedTextFile.DEFAULT_DIGEST_ALGORITHM, 1, null);
+        try {
+            assertEquals("size", 2, records.size());
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            DataOutputStream expectedOut = new DataOutputStream(expected);
+            // sorted by payload within the key
+            expectedOut.writeInt(payloads[2].length);
+            expectedOut.write(payloads[2]);
+            expectedOut.writeInt(payloads[1].length);
+            expectedOut.write(payloads[1]);
+            expectedOut.close();
+            assertArrayEquals("k1 records", expected.toByteArray(), records.getRangeBytes("k1"));
+            assertEquals("k2 length", 4 + payloads[0].length, records.getRangeLength("k2"));
+        } finally {
+            records.close();
+        }
+    }
+
+    @Test
+    public void testDelimitedFramer() throws IOException {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            longLine.append((char) ('a' + i % 26));
+        }
+        String[] records = { "short\n", "\n", longLine + "\n", "x\n", longLine.toString() };
+        StringBuilder text = new StringBuilder();
+        for (String record : records) {
+            text.append(record);
+        }
+        byte[] bytes = text.toString().getBytes(ENCODING);
+
+        RecordFramer framer = Records.newlineDelimited();
+        InputStream[] streams = {
+                new BufferedInputStream(new ByteArrayInputStream(bytes), 64),
+                new FilterInputStream(new ByteArrayInputStream(bytes)) {
+                    @Override
+                    public boolean markSupported() {
+                        return false;
+                    }
+                }
+        };
+        for (InputStream stream : streams) {
+            for (String record : records) {
+                assertEquals("record", record, new String(framer.next(stream), ENCODING));
+            }
+            assertEquals("end of stream", null, framer.next(stream));
+        }
+    }
+
+    @Test
+    public void testDelimitedRecordsWithKeyField() throws IOException {
+        String csv = "b,2,x\r\na,1,y\r\nbb,3\r\nb,1,z";
+        RangedTextFile records = RangedTextFile.createFromStream(new ByteArrayInputStream(csv.getBytes(ENCODING)),
+                ENCODING, Records.newlineDelimited(), Records.field((byte) ',', 0), true, this.tempDir, 0,
+                RangedTextFile.DEFAULT_DIGEST_ALGORITHM, 1, null);
+        RangedTextFile reordered = RangedTextFile.createFromStream(
+                new ByteArrayInputStream("bb,3\r\nb,2,x\r\na,1,y\r\nb,1,z".getBytes(ENCODING)),
+                ENCODING, Records.newlineDelimited(), Records.field((byte) ',', 0), true, this.tempDir, 0,
+                RangedTextFile.DEFAULT_DIGEST_ALGORITHM, 1, null);
+        try {
+            assertEquals("keys", ids("a", "b", "bb"), rangeIds(records, records.getRanges(null, null)));
+            assertEquals("unterminated last record is terminated when sorted", "b,1,z\nb,2,x\r\n",
+                    records.getRange("b"));
+            assertTrue("order of input doesn't change the sorted bytes", records.isDigestEqual(reordered));
+            assertEquals("second field", "1",
+                    Records.field((byte) ',', 1).extractKey("b,1,z".getBytes(ENCODING), 0, 5, Charset.forName(ENCODING)));
+        } finally {
+            records.close();
+            reordered.close();
+        }
+    }
+
+    @Test
+    public void testParallelIndexing() throws Exception {
+        StringBuilder feed = new StringBuilder();
+        for (int range = 0; range < 60; range++) {
+            // ranges of 1 to 7 lines, some longer than a chunk
+            for (int line = 0; line <= range % 7; line++) {
+                feed.append(String.format("K%03d line %d%s\n", range, line, range % 9 == 0 ? " padding padding" : ""));
+            }
+        }
+        File sortedFile = writeTempFile(feed.toString());
+        Charset charset = Charset.forName(ENCODING);
+
+        RangedTextFile sequential = RangedTextFile.createFromSortedFile(writeTempFile(feed.toString()),
+                charset, Records.newlineDelimited(), Records.fixedWidth(4), RangedTextFile.DEFAULT_DIGEST_ALGORITHM, 1);
+        RangedTextFile parallel = RangedTextFile.createFromSortedFile(writeTempFile(feed.toString()),
+                charset, Records.newlineDelimited(), Records.fixedWidth(4), RangedTextFile.DEFAULT_DIGEST_ALGORITHM, 4);
+        try {
+            assertFalse("sequential uses a stream digest", sequential.isTreeDigest());
+            assertTrue("parallel uses a tree digest", parallel.isTreeDigest());
+            assertFalse("formats are not comparable", sequential.isDigestEqual(parallel));
+            assertEquals("same ranges and range digests", 0, RangedTextFile.diffRanges(sequential, parallel).size());
+            assertEquals("same size", sequential.size(), parallel.size());
+        } finally {
+            sequential.close();
+            parallel.close();
+        }
+
+        ParallelIndexer reference = new ParallelIndexer(sortedFile, charset, Records.newlineDelimited(),
+                Records.fixedWidth(4), RangedTextFile.DEFAULT_DIGEST_ALGORITHM, 1, 37L, new BuildMonitor());
+        reference.index();
+        assertTrue("small chunks split the file", reference.findBoundaries().length > 10);
+        for (int threads = 2; threads <= 5; threads++) {
+            ParallelIndexer indexer = new ParallelIndexer(sortedFile, charset, Records.newlineDelimited(),
+                    Records.fixedWidth(4), RangedTextFile.DEFAULT_DIGEST_ALGORITHM, threads, 37L, new BuildMonitor());
+            indexer.index();
+            assertArrayEquals("tree digest doesn't depend on threads", reference.getDigest(), indexer.getDigest());
+            assertEquals("range count", reference.getRanges().size(), indexer.getRanges().size());
+            for (RangedTextFile.TextRange expected : reference.getRanges().values()) {
+                RangedTextFile.TextRange actual = indexer.getRanges().get(expected.getRangeId());
+                assertEquals("offset", expected.getOffset(), actual.getOffset());
+                assertEquals("length", expected.getLength(), actual.getLength());
+                assertArrayEquals("range digest", expected.getRangeDigest(), actual.getRangeDigest());
+            }
+        }
+        sortedFile.delete();
+    }
+
+    @Test
+    public void testParallelIndexingBoundaries() throws Exception {
+        // seeking for delimiters and reading whole records must find the same chunks
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            lines.append("R").append(i / 3).append(i % 11 == 0 ? " a much longer record than the chunk size" : "")
+                    .append('\n');
+        }
+        File delimitedFile = writeTempFile(lines.toString());
+        Charset charset = Charset.forName(ENCODING);
+
+        long[] delimited = new ParallelIndexer(delimitedFile, charset, Records.newlineDelimited(),
+                Records.fixedWidth(4), RangedTextFile.DEFAULT_DIGEST_ALGORITHM, 2, 16L, new BuildMonitor())
+                .findBoundaries();
+        long[] generic = new ParallelIndexer(delimitedFile, charset, new DelegatingFramer(Records.newlineDelimited()),
+                Records.fixedWidth(4), RangedTextFile.DEFAULT_DIGEST_ALGORITHM, 2, 16L, new BuildMonitor())
+                .findBoundaries();
+        assertEquals("same boundaries", toList(delimited), toList(generic));
+        assertEquals("ends at the file length", delimitedFile.length(), delimited[delimited.length - 1]);
+        delimitedFile.delete();
+    }
+
+    /**
+     * Hides the delimited framer's type, so the indexer has to read through the records
+     */
+    private static final class DelegatingFramer implements RecordFramer {
+        private final RecordFramer delegate;
+
+        DelegatingFramer(RecordFramer delegate) {
+            this.delegate = delegate;
+        }
+
+        public byte[] next(InputStream in) throws IOException {
+            return delegate.next(in);
+        }
+
+        public int payloadOffset(byte[] record) {
+            return delegate.payloadOffset(record);
+        }
+
+        public int payloadLength(byte[] record) {
+            return delegate.payloadLength(record);
+        }
+
+        public byte[] terminate(byte[] record) {
+            return delegate.terminate(record);
+        }
+    }
+
+    private File writeTempFile(String content) throws IOException {
+        File file = File.createTempFile("sorted", ".txt", this.tempDir);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(ENCODING));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static List<Long> toList(long[] values) {
+        List<Long> list = new ArrayList<Long>();
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static List<String> ids(String... ids) {
+        List<String> list = new ArrayList<String>();
+        for (String id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private List<String> rangeIds(Iterator<Map.Entry<String, String>> it) {
+        return rangeIds(textFile, it);
+    }
+
+    private static List<String> rangeIds(RangedTextFile file, Iterator<Map.Entry<String, String>> it) {
+        List<String> list = new ArrayList<String>();
+        while (it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            assertEquals("text should match getRange", file.getRange(entry.getKey()), entry.getValue());
+            list.add(entry.getKey());
+        }
+        return list;
+    }
+}
@@ -0,0 +1,104 @@
+package net.adamcin.commons.sling.osgi;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.ComponentFactory;
+import org.osgi.service.component.ComponentInstance;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Dictionary;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class ComponentFactoryManagerTest {
+
+    /**
+     * Component whose instances are all equal, to check that tracking doesn't rely on equals()
+     */
+    static class EqualComponent {
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof EqualComponent;
+        }
+
+        @Override
+        public int hashCode() {
+            return 1;
+        }
+    }
+
+    private final AtomicInteger disposed = new AtomicInteger();
+    private final AtomicInteger ungot = new AtomicInteger();
+    private ComponentFactoryManager<EqualComponent> manager;
+
+    @Before
+    public void setUp() {
+        final ComponentFactory factory = new ComponentFactory() {
+            public ComponentInstance newInstance(Dictionary properties) {
+                final EqualComponent component = new EqualComponent();
+                return new ComponentInstance() {
+                    public void dispose() {
+                        disposed.incrementAndGet();
+                    }
+
+                    public Object getInstance() {
+                        return component;
+                    }
+                };
+            }
+        };
+
+        final ServiceReference ref = proxy(ServiceReference.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return null;
+            }
+        });
+
+        BundleContext bundleContext = proxy(BundleContext.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getServiceReferences".equals(name)) {
+                    return new ServiceReference[]{ref};
+                } else if ("getService".equals(name)) {
+                    return factory;
+                } else if ("ungetService".equals(name)) {
+                    ungot.incrementAndGet();
+                    return Boolean.TRUE;
+                }
+                return null;
+            }
+        });
+
+        this.manager = ComponentFactoryManager.newManagerInstance(bundleContext, EqualComponent.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(ComponentFactoryManagerTest.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    @Test
+    public void testReleaseByIdentity() {
+        EqualComponent first = manager.newInstance("test");
+        EqualComponent second = manager.newInstance("test");
+        assertNotSame("instances should be distinct", first, second);
+        assertEquals("equal instances should be tracked separately", 2, manager.getInstanceCount());
+
+        manager.release(first);
+        manager.release(first);
+        assertEquals("double release should dispose once", 1, disposed.get());
+        assertEquals("double release should unget once", 1, ungot.get());
+        assertEquals("the other instance should still be tracked", 1, manager.getInstanceCount());
+
+        manager.releaseAll();
+        assertEquals("releaseAll should dispose the rest", 2, disposed.get());
+        assertEquals("releaseAll should unget the rest", 2, ungot.get());
+        assertEquals("nothing should be tracked", 0, manager.getInstanceCount());
+    }
+}
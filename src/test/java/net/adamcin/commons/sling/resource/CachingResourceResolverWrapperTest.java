@@ -0,0 +1,117 @@
+package net.adamcin.commons.sling.resource;
+
+import net.adamcin.commons.testing.sling.MockResource;
+import net.adamcin.commons.testing.sling.MockResourceResolver;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CachingResourceResolverWrapperTest {
+    private NonExistingResource dummy;
+    private CountingResolver counting;
+
+    /**
+     * Resolver over a fixed set of paths which counts the lookups that reach it
+     */
+    class CountingResolver extends ResourceResolverWrapper {
+        final Map<String, Resource> resources = new HashMap<String, Resource>();
+        int getResourceCalls;
+        int listChildrenCalls;
+
+        CountingResolver() {
+            super(new MockResourceResolver());
+        }
+
+        void add(String path, MockResource resource) {
+            resources.put(path, new SlingAdaptableResourceWrapper(resource) {
+                @Override
+                public ResourceResolver getResourceResolver() {
+                    return CountingResolver.this;
+                }
+            });
+        }
+
+        @Override
+        public Resource getResource(String path) {
+            getResourceCalls++;
+            return resources.get(path);
+        }
+
+        @Override
+        public Iterator<Resource> listChildren(Resource parent) {
+            listChildrenCalls++;
+            return parent.listChildren();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        this.dummy = new NonExistingResource(new MockResourceResolver(), "/apps/dummy/place");
+        this.counting = new CountingResolver();
+        MockResource content = new MockResource(this.dummy, "content");
+        content.addChild(new MockResource(this.dummy, "a"));
+        content.addChild(new MockResource(this.dummy, "b"));
+        this.counting.add("/content", content);
+        this.counting.add("/content/a", new MockResource(this.dummy, "a"));
+        this.counting.add("/content/b", new MockResource(this.dummy, "b"));
+    }
+
+    @Test
+    public void testGetResource() {
+        CachingResourceResolverWrapper caching = new CachingResourceResolverWrapper(counting);
+        Resource first = caching.getResource("/content");
+        Resource second = caching.getResource("/content");
+        assertSame("cached resource should be returned", first, second);
+        assertSame("resource should report the caching resolver", caching, first.getResourceResolver());
+
+        assertNull("missing resource", caching.getResource("/missing"));
+        assertNull("missing resource", caching.getResource("/missing"));
+
+        assertEquals("wrapped resolver should be called once per path", 2, counting.getResourceCalls);
+        assertEquals("hits", 2L, caching.getHitCount());
+        assertEquals("misses", 2L, caching.getMissCount());
+
+        caching.clearCache();
+        caching.getResource("/content");
+        assertEquals("cleared cache should look up again", 3, counting.getResourceCalls);
+    }
+
+    @Test
+    public void testListChildren() {
+        CachingResourceResolverWrapper caching = new CachingResourceResolverWrapper(counting);
+        Resource content = caching.getResource("/content");
+        for (int i = 0; i < 3; i++) {
+            int count = 0;
+            for (Iterator<Resource> it = caching.listChildren(content); it.hasNext(); it.next()) {
+                count++;
+            }
+            assertEquals("children", 2, count);
+        }
+        assertEquals("wrapped resolver should list children once", 1, counting.listChildrenCalls);
+    }
+
+    @Test
+    public void testMaxResources() {
+        CachingResourceResolverWrapper caching = new CachingResourceResolverWrapper(counting, 2, 2);
+        caching.getResource("/content");
+        caching.getResource("/content/a");
+        caching.getResource("/content");
+        caching.getResource("/content/b");
+        assertEquals("three distinct paths", 3, counting.getResourceCalls);
+
+        caching.getResource("/content");
+        assertEquals("most recently used path should be kept", 3, counting.getResourceCalls);
+        caching.getResource("/content/a");
+        assertEquals("least recently used path should be dropped", 4, counting.getResourceCalls);
+    }
+}
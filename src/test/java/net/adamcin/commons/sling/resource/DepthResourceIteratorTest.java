@@ -3,13 +3,25 @@ package net.adamcin.commons.sling.resource;
 import net.adamcin.commons.testing.sling.MockResource;
 import net.adamcin.commons.testing.sling.MockResourceResolver;
 import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 
 public class DepthResourceIteratorTest {
@@ -67,5 +79,281 @@ public class DepthResourceIteratorTest {
         assertEquals("count should be 3", 3, count);
     }
 
+    @Test
+    public void testPrefetchingIterator() {
+        List<String> expected = new ArrayList<String>();
+        DepthResourceIterator it = new DepthResourceIterator(rootResource, 2, "000000", "999999");
+        while (it.hasNext()) {
+            expected.add(it.next().getName());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int maxPrefetched : new int[]{1, 100}) {
+                List<String> actual = new ArrayList<String>();
+                DepthResourceIterator prefetching = new DepthResourceIterator(rootResource, 2, "000000", "999999",
+                        DepthResourceIterator.DEFAULT_COMPARATOR, executor, 2, maxPrefetched);
+                while (prefetching.hasNext()) {
+                    actual.add(prefetching.next().getName());
+                }
+                assertEquals("prefetching should not change the order", expected, actual);
+                assertEquals("prefetched resources should be consumed", 0, prefetching.prefetchedCount.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPrefetchingBound() {
+        MockResource tree = new MockResource(this.dummy, "tree");
+        for (int i = 0; i < 5; i++) {
+            MockResource level1 = new MockResource(this.dummy, Integer.toString(i));
+            tree.addChild(level1);
+            for (int j = 0; j < 5; j++) {
+                MockResource level2 = new MockResource(this.dummy, Integer.toString(j));
+                level1.addChild(level2);
+                for (int k = 0; k < 5; k++) {
+                    level2.addChild(new MockResource(this.dummy, Integer.toString(k)));
+                }
+            }
+        }
+        List<String> expected = names(new DepthResourceIterator(tree, 3, null, null));
+
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (final int maxPrefetched : new int[]{1, 7, 12}) {
+                final AtomicInteger peak = new AtomicInteger();
+                final DepthResourceIterator[] holder = new DepthResourceIterator[1];
+                // samples the prefetched count whenever a listing starts or finishes
+                Executor sampling = new Executor() {
+                    public void execute(final Runnable command) {
+                        pool.execute(new Runnable() {
+                            public void run() {
+                                command.run();
+                                DepthResourceIterator it = holder[0];
+                                if (it != null) {
+                                    sample(peak, it.prefetchedCount.get());
+                                }
+                            }
+                        });
+                    }
+                };
+                DepthResourceIterator prefetching = new DepthResourceIterator(tree, 3, null, null,
+                        DepthResourceIterator.DEFAULT_COMPARATOR, sampling, 3, maxPrefetched) {
+                    @Override
+                    protected Iterator<Resource> listChildren(Resource parent) {
+                        sample(peak, prefetchedCount.get());
+                        return super.listChildren(parent);
+                    }
+                };
+                holder[0] = prefetching;
+                List<String> actual = new ArrayList<String>();
+                while (prefetching.hasNext()) {
+                    actual.add(prefetching.next().getName());
+                    sample(peak, prefetching.prefetchedCount.get());
+                }
+                assertEquals("prefetching should not change the order", expected, actual);
+                assertTrue("prefetched count should never exceed " + maxPrefetched + " but peaked at " + peak.get(),
+                        peak.get() <= maxPrefetched);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void sample(AtomicInteger peak, int value) {
+        int current;
+        while (value > (current = peak.get()) && !peak.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    @Test
+    public void testBoundsPruning() {
+        MockResource digits = new MockResource(this.dummy, "digits");
+        for (int i = 9; i >= 0; i--) {
+            MockResource level1 = new MockResource(this.dummy, Integer.toString(i));
+            digits.addChild(level1);
+            for (int j = 9; j >= 0; j--) {
+                level1.addChild(new MockResource(this.dummy, Integer.toString(j)));
+            }
+        }
+
+        // a comparator other than the default disables the binary search over sorted siblings
+        Comparator<Resource> unpruned = new Comparator<Resource>() {
+            public int compare(Resource left, Resource right) {
+                return left.getName().compareTo(right.getName());
+            }
+        };
+
+        List<String> pruned = new ArrayList<String>();
+        DepthResourceIterator it = new DepthResourceIterator(digits, 2, "37", "62");
+        while (it.hasNext()) {
+            pruned.add(it.next().getName());
+        }
+
+        List<String> filtered = new ArrayList<String>();
+        DepthResourceIterator unprunedIt = new DepthResourceIterator(digits, 2, "37", "62", unpruned);
+        while (unprunedIt.hasNext()) {
+            filtered.add(unprunedIt.next().getName());
+        }
+
+        assertEquals("count should be 26", 26, pruned.size());
+        assertEquals("first should be 7", "7", pruned.get(0));
+        assertEquals("last should be 2", "2", pruned.get(pruned.size() - 1));
+        assertEquals("pruning should not change the result", filtered, pruned);
+    }
+
+    @Test
+    public void testBoundsPruningVariableLengthNames() {
+        String[] names = {"4", "40", "45", "5", "6"};
+        MockResource tree = new MockResource(this.dummy, "tree");
+        for (String name : names) {
+            MockResource level1 = new MockResource(this.dummy, name);
+            tree.addChild(level1);
+            for (String childName : names) {
+                level1.addChild(new MockResource(this.dummy, childName));
+            }
+        }
+
+        Comparator<Resource> unpruned = new Comparator<Resource>() {
+            public int compare(Resource left, Resource right) {
+                return left.getName().compareTo(right.getName());
+            }
+        };
+
+        List<String> pruned = names(new DepthResourceIterator(tree, 2, "45", null));
+        assertEquals("4/5 should be within the lower bound", "5", pruned.get(0));
+        assertEquals("pruning should not change the result", names(new DepthResourceIterator(tree, 2, "45", null, unpruned)), pruned);
 
+        for (String lower : new String[]{null, "4", "40", "405", "44", "45", "4545", "46", "5"}) {
+            for (String upper : new String[]{null, "4", "40", "45", "455", "5", "56"}) {
+                assertEquals("pruning should not change the result for [" + lower + ", " + upper + "]",
+                        names(new DepthResourceIterator(tree, 2, lower, upper, unpruned)),
+                        names(new DepthResourceIterator(tree, 2, lower, upper)));
+            }
+        }
+    }
+
+    private MockResource digitTree(boolean ascending) {
+        MockResource digits = new MockResource(this.dummy, "digits");
+        for (int i = 0; i < 10; i++) {
+            MockResource level1 = new MockResource(this.dummy, Integer.toString(ascending ? i : 9 - i));
+            digits.addChild(level1);
+            for (int j = 0; j < 10; j++) {
+                level1.addChild(new MockResource(this.dummy, Integer.toString(ascending ? j : 9 - j)));
+            }
+        }
+        return digits;
+    }
+
+    private List<String> names(Iterator<Resource> it) {
+        List<String> names = new ArrayList<String>();
+        while (it.hasNext()) {
+            names.add(it.next().getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testAssumeOrderedIterator() {
+        MockResource ordered = digitTree(true);
+        assertEquals("streaming ordered children should match sorting them",
+                names(new DepthResourceIterator(ordered, 2, "37", "62")),
+                names(new DepthResourceIterator(ordered, 2, "37", "62", DepthResourceIterator.DEFAULT_COMPARATOR, true)));
+
+        // every sibling list is reversed, so each streams its first element and then sorts the rest: 9, 0 ... 8
+        List<String> fallbackOrder = new ArrayList<String>();
+        fallbackOrder.add("9");
+        for (int i = 0; i < 9; i++) {
+            fallbackOrder.add(Integer.toString(i));
+        }
+        List<String> expected = new ArrayList<String>();
+        for (String parent : fallbackOrder) {
+            for (String child : fallbackOrder) {
+                expected.add(parent + child);
+            }
+        }
+        DepthResourceIterator inverted = new DepthResourceIterator(digitTree(false), 2, null, null,
+                DepthResourceIterator.DEFAULT_COMPARATOR, true);
+        List<String> actual = new ArrayList<String>();
+        while (inverted.hasNext()) {
+            inverted.next();
+            actual.add(inverted.getCheckpoint());
+        }
+        assertEquals("inverted siblings should follow the first one in sorted order", expected, actual);
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() {
+        MockResource digits = digitTree(true);
+        List<String> expected = names(new DepthResourceIterator(digits, 2, "37", "62"));
+
+        DepthResourceIterator first = new DepthResourceIterator(digits, 2, "37", "62");
+        assertEquals("no checkpoint before the first resource", null, first.getCheckpoint());
+        List<String> actual = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            actual.add(first.next().getName());
+        }
+        assertEquals("checkpoint should be the concatenated names of the 10th resource", "46", first.getCheckpoint());
+
+        actual.addAll(names(DepthResourceIterator.resume(digits, 2, first.getCheckpoint(), "62")));
+        assertEquals("resumed traversal should continue after the checkpoint", expected, actual);
+    }
+
+    @Test
+    public void testBatches() {
+        MockResource digits = digitTree(true);
+        final List<Integer> completed = new ArrayList<Integer>();
+        ResourceBatchIterator.Callback callback = new ResourceBatchIterator.Callback() {
+            public void batchCompleted(List<Resource> batch) {
+                completed.add(batch.size());
+            }
+        };
+
+        List<Integer> sizes = new ArrayList<Integer>();
+        ResourceBatchIterator batches = new DepthResourceIterator(digits, 2, "37", "62").batches(10, callback);
+        while (batches.hasNext()) {
+            List<Resource> batch = batches.next();
+            assertEquals("callback should run after the batch is processed", sizes.size(), completed.size());
+            sizes.add(batch.size());
+        }
+        assertEquals("batch sizes", Arrays.asList(10, 10, 6), sizes);
+        assertEquals("callback should run for every batch", sizes, completed);
+
+        ResourceBatchIterator.Weigher unitWeigher = new ResourceBatchIterator.Weigher() {
+            public long weigh(Resource resource) {
+                return 1L;
+            }
+        };
+        sizes.clear();
+        batches = new ResourceBatchIterator(new DepthResourceIterator(digits, 2, "37", "62"), 0, 4L, unitWeigher, null);
+        while (batches.hasNext()) {
+            sizes.add(batches.next().size());
+        }
+        assertEquals("byte-limited batch sizes", Arrays.asList(4, 4, 4, 4, 4, 4, 2), sizes);
+
+        // leaves 7, 8, 9 weigh 8, 9, 10, so each takes a batch of its own rather than overflowing one
+        final ResourceBatchIterator.Weigher digitWeigher = new ResourceBatchIterator.Weigher() {
+            public long weigh(Resource resource) {
+                return Integer.parseInt(resource.getName()) + 1L;
+            }
+        };
+        sizes.clear();
+        int count = 0;
+        batches = new ResourceBatchIterator(new DepthResourceIterator(digits, 2, "37", "62"), 0, 10L, digitWeigher, null);
+        while (batches.hasNext()) {
+            List<Resource> batch = batches.next();
+            long weight = 0L;
+            for (Resource resource : batch) {
+                weight += digitWeigher.weigh(resource);
+            }
+            assertTrue("batch should stay within the byte limit: " + weight, weight <= 10L);
+            sizes.add(batch.size());
+            count += batch.size();
+        }
+        assertEquals("weighted batch sizes", Arrays.asList(1, 1, 1, 4, 1, 1, 1, 1, 1, 1, 4, 1, 1, 1, 1, 1, 1, 3), sizes);
+        assertEquals("no resources should be lost", 26, count);
+    }
 }
@@ -0,0 +1,152 @@
+package net.adamcin.commons.sling.resource;
+
+import net.adamcin.commons.testing.sling.MockResource;
+import net.adamcin.commons.testing.sling.MockResourceResolver;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelDepthResourceIteratorTest {
+    private NonExistingResource dummy;
+    private MockResource rootResource;
+    private ExecutorService executor;
+    private final AtomicInteger openResolvers = new AtomicInteger();
+    private volatile String failingPath;
+
+    /**
+     * Hands out resolvers which find resources under rootResource by walking child names, and counts how many are open
+     */
+    private final ResourceResolverFactory factory = new ResourceResolverFactory() {
+        public ResourceResolver getResourceResolver(Map<String, Object> authenticationInfo) throws LoginException {
+            openResolvers.incrementAndGet();
+            return new ResourceResolverWrapper(new MockResourceResolver()) {
+                @Override
+                public Resource getResource(String path) {
+                    if (path.equals(failingPath)) {
+                        throw new StackOverflowError("too deep");
+                    }
+                    Resource current = rootResource;
+                    for (String name : path.substring(1).split("/")) {
+                        Resource found = null;
+                        Iterator<Resource> children = current.listChildren();
+                        while (children.hasNext()) {
+                            Resource child = children.next();
+                            if (name.equals(child.getName())) {
+                                found = child;
+                            }
+                        }
+                        if (found == null) {
+                            return null;
+                        }
+                        current = found;
+                    }
+                    return current;
+                }
+
+                @Override
+                public void close() {
+                    openResolvers.decrementAndGet();
+                }
+            };
+        }
+
+        public ResourceResolver getAdministrativeResourceResolver(Map<String, Object> authenticationInfo) throws LoginException {
+            return getResourceResolver(authenticationInfo);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        this.dummy = new NonExistingResource(new MockResourceResolver(), "/apps/dummy/place");
+        this.rootResource = new MockResource(this.dummy, "root");
+        MockResource digits = new MockResource(this.dummy, "digits");
+        this.rootResource.addChild(digits);
+        for (int i = 9; i >= 0; i--) {
+            MockResource level1 = new MockResource(this.dummy, Integer.toString(i));
+            digits.addChild(level1);
+            for (int j = 9; j >= 0; j--) {
+                level1.addChild(new MockResource(this.dummy, Integer.toString(j)));
+            }
+        }
+        this.executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+    }
+
+    private List<String> sequentialNames(String lowerBound, String upperBound) {
+        List<String> names = new ArrayList<String>();
+        Resource digits = this.rootResource.listChildren().next();
+        DepthResourceIterator it = new DepthResourceIterator(digits, 2, lowerBound, upperBound);
+        while (it.hasNext()) {
+            names.add(it.next().getName());
+        }
+        return names;
+    }
+
+    private List<String> parallelNames(String lowerBound, String upperBound, boolean ordered, int queueCapacity) throws LoginException {
+        List<String> names = new ArrayList<String>();
+        ParallelDepthResourceIterator it = new ParallelDepthResourceIterator(factory, null, "/digits", 2,
+                lowerBound, upperBound, DepthResourceIterator.DEFAULT_COMPARATOR, executor, 3, ordered, queueCapacity);
+        try {
+            while (it.hasNext()) {
+                names.add(it.next().getName());
+            }
+        } finally {
+            it.close();
+        }
+        return names;
+    }
+
+    @Test
+    public void testOrderedTraversal() throws LoginException {
+        assertEquals("ordered traversal should match sequential", sequentialNames("37", "62"),
+                parallelNames("37", "62", true, 2));
+        assertEquals("all resolvers should be closed", 0, openResolvers.get());
+    }
+
+    @Test
+    public void testUnorderedTraversal() throws LoginException {
+        List<String> expected = sequentialNames(null, null);
+        List<String> actual = parallelNames(null, null, false, 5);
+        assertEquals("count should be 100", 100, actual.size());
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals("unordered traversal should find the same resources", expected, actual);
+        assertEquals("all resolvers should be closed", 0, openResolvers.get());
+    }
+
+    @Test
+    public void testWorkerErrorFailsTraversal() throws LoginException {
+        this.failingPath = "/digits/5";
+        for (boolean ordered : new boolean[]{true, false}) {
+            try {
+                parallelNames(null, null, ordered, 2);
+                fail("an Error in a worker should fail the traversal");
+            } catch (IllegalStateException e) {
+                assertTrue("cause should be the worker's Error", e.getCause() instanceof StackOverflowError);
+            }
+            assertEquals("all resolvers should be closed", 0, openResolvers.get());
+        }
+    }
+}
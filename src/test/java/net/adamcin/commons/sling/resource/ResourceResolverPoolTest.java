@@ -0,0 +1,137 @@
+package net.adamcin.commons.sling.resource;
+
+import net.adamcin.commons.testing.sling.MockResourceResolver;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResourceResolverPoolTest {
+
+    /**
+     * Resolver which records whether it has been closed, and can be made to report that it is no longer live
+     */
+    static class TestResolver extends ResourceResolverWrapper {
+        boolean live = true;
+        boolean closed;
+
+        TestResolver() {
+            super(new MockResourceResolver());
+        }
+
+        @Override
+        public boolean isLive() {
+            return live && !closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final List<TestResolver> logins = new ArrayList<TestResolver>();
+
+    private final ResourceResolverFactory factory = new ResourceResolverFactory() {
+        public ResourceResolver getResourceResolver(Map<String, Object> authenticationInfo) throws LoginException {
+            TestResolver resolver = new TestResolver();
+            logins.add(resolver);
+            return resolver;
+        }
+
+        public ResourceResolver getAdministrativeResourceResolver(Map<String, Object> authenticationInfo) throws LoginException {
+            return getResourceResolver(authenticationInfo);
+        }
+    };
+
+    private static ResourceResolver underlying(ResourceResolver borrowed) {
+        return ((ResourceResolverWrapper) borrowed).getResourceResolver();
+    }
+
+    @Test
+    public void testReuse() throws LoginException {
+        ResourceResolverPool pool = new ResourceResolverPool(factory, null, false, 2, 0L);
+        ResourceResolver first = pool.borrow();
+        ResourceResolver underlying = underlying(first);
+        first.close();
+        first.close();
+        assertFalse("returned resolver should not be logged out", logins.get(0).closed);
+        assertFalse("returned wrapper should not be live", first.isLive());
+        try {
+            first.getUserID();
+            fail("returned wrapper should not be usable");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+
+        ResourceResolver second = pool.borrow();
+        assertSame("returned resolver should be reused", underlying, underlying(second));
+        assertEquals("one login", 1, logins.size());
+        assertEquals("pool size", 1L, pool.getPoolSize());
+        assertEquals("active", 1, pool.getActiveCount());
+        second.close();
+        assertEquals("idle", 1, pool.getIdleCount());
+        assertEquals("borrows", 2L, pool.getBorrowCount());
+
+        pool.close();
+        assertTrue("closing the pool should log out idle resolvers", logins.get(0).closed);
+        try {
+            pool.borrow();
+            fail("closed pool should not lend resolvers");
+        } catch (LoginException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBounded() throws LoginException {
+        ResourceResolverPool pool = new ResourceResolverPool(factory, null, false, 1, 0L);
+        ResourceResolver borrowed = pool.borrow();
+        try {
+            pool.borrow(10L, TimeUnit.MILLISECONDS);
+            fail("exhausted pool should time out");
+        } catch (LoginException expected) {
+            // expected
+        }
+        borrowed.close();
+        pool.borrow(10L, TimeUnit.MILLISECONDS).close();
+        assertEquals("one login", 1, logins.size());
+    }
+
+    @Test
+    public void testDiscardDeadAndIdle() throws LoginException, InterruptedException {
+        ResourceResolverPool pool = new ResourceResolverPool(factory, null, false, 2, 0L);
+        pool.borrow().close();
+        logins.get(0).live = false;
+        pool.borrow().close();
+        assertEquals("dead resolver should be replaced", 2, logins.size());
+        assertTrue("dead resolver should be logged out", logins.get(0).closed);
+
+        ResourceResolverPool idlePool = new ResourceResolverPool(factory, null, false, 2, 1L);
+        idlePool.borrow().close();
+        Thread.sleep(5L);
+        idlePool.evictIdle();
+        assertEquals("idle resolver should be evicted", 0, idlePool.getIdleCount());
+        assertTrue("idle resolver should be logged out", logins.get(2).closed);
+
+        ResourceResolver first = idlePool.borrow();
+        ResourceResolver second = idlePool.borrow();
+        first.close();
+        second.close();
+        Thread.sleep(5L);
+        idlePool.borrow();
+        assertEquals("borrowing should evict every expired resolver", 0, idlePool.getIdleCount());
+        assertTrue("expired resolvers should be logged out", logins.get(3).closed && logins.get(4).closed);
+    }
+}
@@ -0,0 +1,253 @@
+package net.adamcin.commons.sling.resource;
+
+import net.adamcin.commons.testing.sling.MockResource;
+import net.adamcin.commons.testing.sling.MockResourceResolver;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.NonExistingResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResourceResolverWrapperTest {
+    private NonExistingResource dummy;
+    private String resourceType = "test/page";
+    private int mapCalls;
+    private final AtomicInteger rowsRead = new AtomicInteger();
+
+    /**
+     * Resolver which returns a new resource object for every lookup and resolution, like the JCR resource provider
+     */
+    private final ResourceResolver underlying = new ResourceResolverWrapper(new MockResourceResolver()) {
+        @Override
+        public Resource getResource(final String path) {
+            return newResource(path, null);
+        }
+
+        @Override
+        public Resource resolve(String absPath) {
+            int extension = absPath.indexOf('.');
+            return newResource(absPath.substring(0, extension), absPath.substring(extension));
+        }
+
+        @Override
+        public Iterator<Map<String, Object>> queryResources(String query, String language) {
+            return new Iterator<Map<String, Object>>() {
+                int row;
+
+                public boolean hasNext() {
+                    return row < 100;
+                }
+
+                public Map<String, Object> next() {
+                    rowsRead.incrementAndGet();
+                    return Collections.<String, Object>singletonMap("row", row++);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("remove");
+                }
+            };
+        }
+
+        @Override
+        public ResourceResolver clone(Map<String, Object> authenticationInfo) {
+            return this;
+        }
+
+        @Override
+        public String map(String resourcePath) {
+            mapCalls++;
+            return "/mapped" + resourcePath;
+        }
+    };
+
+    private Resource newResource(final String path, String resolutionPathInfo) {
+        final String type = resourceType;
+        final ResourceMetadata metadata = new ResourceMetadata();
+        metadata.setResolutionPathInfo(resolutionPathInfo);
+        return new SlingAdaptableResourceWrapper(new MockResource(dummy, path.substring(path.lastIndexOf('/') + 1))) {
+            @Override
+            public String getPath() {
+                return path;
+            }
+
+            @Override
+            public String getResourceType() {
+                return type;
+            }
+
+            @Override
+            public ResourceMetadata getResourceMetadata() {
+                return metadata;
+            }
+
+            @Override
+            public ResourceResolver getResourceResolver() {
+                return underlying;
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        this.dummy = new NonExistingResource(new MockResourceResolver(), "/apps/dummy/place");
+    }
+
+    @Test
+    public void testWrapperPerLookup() throws IllegalAccessException {
+        ResourceResolverWrapper wrapper = new ResourceResolverWrapper(underlying);
+        Resource first = wrapper.getResource("/content/page");
+        Resource second = wrapper.getResource("/content/page");
+        assertSame("wrapper should report the wrapping resolver", wrapper, first.getResourceResolver());
+        assertNotSame("each lookup should get its own wrapper", first, second);
+        assertNotSame("each wrapper should wrap its own resource", ((SlingAdaptableResourceWrapper) first).getResource(),
+                ((SlingAdaptableResourceWrapper) second).getResource());
+
+        this.resourceType = "test/otherPage";
+        assertEquals("a later lookup should see the current resource", "test/otherPage",
+                wrapper.getResource("/content/page").getResourceType());
+
+        // the resolver should keep no state for the wrappers it hands out
+        int retained = retainedEntries(wrapper);
+        List<Resource> handedOut = new ArrayList<Resource>();
+        for (int i = 0; i < 1000; i++) {
+            handedOut.add(wrapper.getResource("/content/page" + i));
+        }
+        assertEquals("wrapping should not grow any map or collection in the resolver", retained,
+                retainedEntries(wrapper));
+    }
+
+    /**
+     * Counts the entries of the maps and collections held in the fields of a resolver wrapper
+     */
+    private static int retainedEntries(ResourceResolverWrapper wrapper) throws IllegalAccessException {
+        int entries = 0;
+        for (Class<?> type = wrapper.getClass(); type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                Object value = field.get(wrapper);
+                if (value instanceof Map) {
+                    entries += ((Map<?, ?>) value).size();
+                } else if (value instanceof Collection) {
+                    entries += ((Collection<?>) value).size();
+                }
+            }
+        }
+        return entries;
+    }
+
+    @Test
+    public void testWrapperIdentityWithDifferentMetadata() {
+        ResourceResolverWrapper wrapper = new ResourceResolverWrapper(underlying);
+        Resource html = wrapper.resolve("/content/page.html");
+        Resource json = wrapper.resolve("/content/page.json");
+        assertNotSame("resolutions to the same path should not share a wrapper", html, json);
+        assertEquals("html resolution path info", ".html", html.getResourceMetadata().getResolutionPathInfo());
+        assertEquals("json resolution path info", ".json", json.getResourceMetadata().getResolutionPathInfo());
+    }
+
+    @Test
+    public void testMappingCache() throws InterruptedException {
+        ResourceResolverWrapper wrapper = new ResourceResolverWrapper(underlying);
+        wrapper.map("/content/page");
+        wrapper.map("/content/page");
+        assertEquals("uncached mappings should be delegated", 2, mapCalls);
+
+        wrapper.setMappingCache(100, 0L);
+        assertEquals("mapped path", "/mapped/content/page", wrapper.map("/content/page"));
+        wrapper.map("/content/page");
+        assertEquals("cached mapping should be delegated once", 3, mapCalls);
+
+        Map<String, String> mapped = wrapper.map(Arrays.asList("/content/page", "/content/other", "/content/other"));
+        assertEquals("bulk map should return each distinct path", 2, mapped.size());
+        assertEquals("bulk mapped path", "/mapped/content/other", mapped.get("/content/other"));
+        assertEquals("bulk map should only delegate uncached paths once", 4, mapCalls);
+
+        wrapper.invalidateMappings();
+        wrapper.map("/content/page");
+        assertEquals("invalidated mapping should be delegated again", 5, mapCalls);
+
+        wrapper.setMappingCache(100, 1L);
+        wrapper.map("/content/page");
+        Thread.sleep(5L);
+        wrapper.map("/content/page");
+        assertEquals("expired mapping should be delegated again", 7, mapCalls);
+
+        MappingCache bounded = new MappingCache(4, 0L);
+        for (int i = 0; i < 10; i++) {
+            bounded.put("/content/" + i, "/" + i);
+        }
+        assertTrue("cache should stay bounded", bounded.entries.size() <= 4);
+    }
+
+    @Test
+    public void testPagedQuery() {
+        ResourceResolverWrapper wrapper = new ResourceResolverWrapper(underlying);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            PagedIterator<Map<String, Object>> pages = wrapper.queryResources("query", "sql", 3L, 10L, 4, executor);
+            List<Integer> sizes = new ArrayList<Integer>();
+            List<Map<String, Object>> first = null;
+            while (pages.hasNext()) {
+                List<Map<String, Object>> page = pages.next();
+                first = first == null ? page : first;
+                sizes.add(page.size());
+            }
+            assertEquals("page sizes", Arrays.asList(4, 4, 2), sizes);
+            assertEquals("first row after the offset", 3, first.get(0).get("row"));
+            assertEquals("rows past the limit should not be read", 13, rowsRead.get());
+
+            rowsRead.set(0);
+            pages = wrapper.queryResources("query", "sql", 0L, 0L, 10, executor);
+            assertEquals("first page", 10, pages.next().size());
+            pages.close();
+            assertTrue("stopping early should not drain the results", rowsRead.get() <= 20);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testClone() throws LoginException {
+        ResourceResolverWrapper wrapper = new ResourceResolverWrapper(underlying);
+        wrapper.setMappingCache(100, 0L);
+        wrapper.map("/content/page");
+
+        ResourceResolver clone = wrapper.clone(null);
+        assertSame("clone should be the same class", ResourceResolverWrapper.class, clone.getClass());
+        assertNotSame("clone should be a new wrapper", wrapper, clone);
+        clone.map("/content/page");
+        assertEquals("clone should share the mapping cache", 1, mapCalls);
+        assertSame("clone should reuse the constructor lookup", wrapper.cloneConstructor,
+                ((ResourceResolverWrapper) clone).cloneConstructor);
+        assertSame("clone of a clone should be the same class", ResourceResolverWrapper.class, clone.clone(null).getClass());
+
+        CachingResourceResolverWrapper caching = new CachingResourceResolverWrapper(underlying, 5, 6);
+        CachingResourceResolverWrapper cachingClone = (CachingResourceResolverWrapper) caching.clone(null);
+        assertEquals("clone should keep the cache sizes", 5, cachingClone.maxResources);
+        assertEquals("clone should keep the cache sizes", 6, cachingClone.maxChildLists);
+    }
+}